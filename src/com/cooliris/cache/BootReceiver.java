@@ -3,6 +3,7 @@ package com.cooliris.cache;
 import com.cooliris.media.LocalDataSource;
 import com.cooliris.media.PicasaDataSource;
 import com.cooliris.media.SingleDataSource;
+import com.cooliris.media.UriTexture;
 
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -61,10 +62,12 @@ public class BootReceiver extends BroadcastReceiver {
         } else if (action.equals(Intent.ACTION_MEDIA_EJECT)) {
             LocalDataSource.sThumbnailCache.close();
             LocalDataSource.sThumbnailCacheVideo.close();
+            LocalDataSource.sScreennailCache.close();
             PicasaDataSource.sThumbnailCache.close();
             CacheService.sAlbumCache.close();
             CacheService.sMetaAlbumCache.close();
             CacheService.sSkipThumbnailIds.flush();
+            UriTexture.sUriCache.flush();
         }
     }
 }
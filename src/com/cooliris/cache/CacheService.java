@@ -6,16 +6,14 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.IntentService;
@@ -26,12 +24,13 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.database.MergeCursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.SystemClock;
 import android.provider.MediaStore;
@@ -41,6 +40,7 @@ import android.util.Log;
 
 import com.cooliris.media.DataSource;
 import com.cooliris.media.DiskCache;
+import com.cooliris.media.ExifReader;
 import com.cooliris.media.Gallery;
 import com.cooliris.media.ImageManager;
 import com.cooliris.media.LocalDataSource;
@@ -51,6 +51,8 @@ import com.cooliris.media.MediaSet;
 import com.cooliris.media.R;
 import com.cooliris.media.Shared;
 import com.cooliris.media.SortCursor;
+import com.cooliris.media.StringPool;
+import com.cooliris.media.Timeouts;
 import com.cooliris.media.UriTexture;
 import com.cooliris.media.Utils;
 
@@ -60,6 +62,9 @@ public final class CacheService extends IntentService {
     public static final DiskCache sMetaAlbumCache = new DiskCache("local-meta-cache");
     public static final DiskCache sSkipThumbnailIds = new DiskCache("local-skip-cache");
     public static final DiskCache sSkipVideoThumbnailIds = new DiskCache("local-video-skip-cache");
+    // Image thumbnails that were built from the embedded EXIF thumbnail and
+    // still have to be rebuilt from the full image.
+    private static final DiskCache sProvisionalThumbnailIds = new DiskCache("local-provisional-thumbs");
 
     private static final String TAG = "CacheService";
     private static ImageList sList = null;
@@ -68,8 +73,14 @@ public final class CacheService extends IntentService {
     // Wait 2 seconds to start the thumbnailer so that the application can load
     // without any overheads.
     private static final int THUMBNAILER_WAIT_IN_MS = 2000;
+    private static final long VIDEO_THUMBNAIL_TIMEOUT = 5000; // ms.
     private static final int DEFAULT_THUMBNAIL_WIDTH = 128;
     private static final int DEFAULT_THUMBNAIL_HEIGHT = 96;
+    // Embedded thumbnails whose aspect ratio is further than this from that of
+    // the image are letterboxed and are not used.
+    private static final float MAX_EXIF_THUMBNAIL_ASPECT_ERROR = 0.05f;
+    // Longest edge of the screennails stored alongside the thumbnails.
+    public static final int SCREENNAIL_SIZE = 480;
 
     public static final String DEFAULT_IMAGE_SORT_ORDER = Images.ImageColumns.DATE_TAKEN + " ASC";
     public static final String DEFAULT_VIDEO_SORT_ORDER = Video.VideoColumns.DATE_TAKEN + " ASC";
@@ -136,9 +147,8 @@ public final class CacheService extends IntentService {
     private static final int ALBUM_CACHE_DIRTY_BUCKET_INDEX = -4;
     private static final int ALBUM_CACHE_LOCALE_INDEX = -5;
 
-    private static final DateFormat mDateFormat = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
-    private static final DateFormat mAltDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
     private static final byte[] sDummyData = new byte[] { 1 };
+    private static final byte[] sNotProvisionalData = new byte[] { 0 };
     private static boolean QUEUE_DIRTY_SET;
     private static boolean QUEUE_DIRTY_ALL;
     private static boolean QUEUE_DIRTY_SENSE;
@@ -428,7 +438,7 @@ public final class CacheService extends IntentService {
                     // Must preserve order with method that writes to cache.
                     item.mId = dis.readLong();
                     item.mCaption = Utils.readUTF(dis);
-                    item.mMimeType = Utils.readUTF(dis);
+                    item.mMimeType = StringPool.intern(Utils.readUTF(dis));
                     item.setMediaType(dis.readInt());
                     item.mLatitude = dis.readDouble();
                     item.mLongitude = dis.readDouble();
@@ -469,9 +479,16 @@ public final class CacheService extends IntentService {
 
     public static final void populateMediaItemFromCursor(final MediaItem item, final ContentResolver cr, final Cursor cursor,
             final String baseUri) {
+        populateMediaItemFromCursor(item, cr, cursor, baseUri, true);
+    }
+
+    // Without fetchExifDateTaken, items missing a valid date taken keep the
+    // MediaStore value and are left to DateTakenBackfill.
+    private static final void populateMediaItemFromCursor(final MediaItem item, final ContentResolver cr, final Cursor cursor,
+            final String baseUri, final boolean fetchExifDateTaken) {
         item.mId = cursor.getLong(CacheService.MEDIA_ID_INDEX);
         item.mCaption = cursor.getString(CacheService.MEDIA_CAPTION_INDEX);
-        item.mMimeType = cursor.getString(CacheService.MEDIA_MIME_TYPE_INDEX);
+        item.mMimeType = StringPool.intern(cursor.getString(CacheService.MEDIA_MIME_TYPE_INDEX));
         item.mLatitude = cursor.getDouble(CacheService.MEDIA_LATITUDE_INDEX);
         item.mLongitude = cursor.getDouble(CacheService.MEDIA_LONGITUDE_INDEX);
         item.mDateTakenInMs = cursor.getLong(CacheService.MEDIA_DATE_TAKEN_INDEX);
@@ -485,7 +502,7 @@ public final class CacheService extends IntentService {
             item.mContentUri = baseUri + item.mId;
         final int itemMediaType = item.getMediaType();
         // Check to see if a new date taken is available.
-        final long dateTaken = fetchDateTaken(item);
+        final long dateTaken = (fetchExifDateTaken) ? fetchDateTaken(item) : -1L;
         if (dateTaken != -1L && item.mContentUri != null) {
             item.mDateTakenInMs = dateTaken;
             final ContentValues values = new ContentValues();
@@ -515,24 +532,9 @@ public final class CacheService extends IntentService {
     public static final long fetchDateTaken(final MediaItem item) {
         if (!item.isDateTakenValid() && !item.mTriedRetrievingExifDateTaken
                 && (item.mFilePath.endsWith(".jpg") || item.mFilePath.endsWith(".jpeg"))) {
-            try {
-                final ExifInterface exif = new ExifInterface(item.mFilePath);
-                final String dateTakenStr = exif.getAttribute(ExifInterface.TAG_DATETIME);
-                if (dateTakenStr != null) {
-                    try {
-                        final Date dateTaken = mDateFormat.parse(dateTakenStr);
-                        return dateTaken.getTime();
-                    } catch (ParseException pe) {
-                        try {
-                            final Date dateTaken = mAltDateFormat.parse(dateTakenStr);
-                            return dateTaken.getTime();
-                        } catch (ParseException pe2) {
-                            Log.i(TAG, "Unable to parse date out of string - " + dateTakenStr);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                Log.i(TAG, "Error reading Exif information, probably not a jpeg.");
+            final long dateTaken = readExifDateTaken(item.mFilePath);
+            if (dateTaken != -1L) {
+                return dateTaken;
             }
 
             // Ensures that we only try retrieving EXIF date taken once.
@@ -541,6 +543,16 @@ public final class CacheService extends IntentService {
         return -1L;
     }
 
+    // Returns -1 if the file has no EXIF date or it could not be parsed.
+    static final long readExifDateTaken(final String filePath) {
+        final ExifReader reader = ExifReader.get();
+        if (!reader.read(filePath)) {
+            Log.i(TAG, "Error reading Exif information, probably not a jpeg.");
+            return -1L;
+        }
+        return reader.getDateTaken();
+    }
+
     public static final byte[] queryThumbnail(final Context context, final long thumbId, final long origId, final boolean isVideo,
             final long timestamp) {
         final DiskCache thumbnailCache = (isVideo) ? LocalDataSource.sThumbnailCacheVideo : LocalDataSource.sThumbnailCache;
@@ -639,7 +651,7 @@ public final class CacheService extends IntentService {
             final long time = SystemClock.uptimeMillis();
             try {
                 bitmap = buildThumbnailForId(context, thumbnailCache, thumbId, origId, isVideo, DEFAULT_THUMBNAIL_WIDTH,
-                                             DEFAULT_THUMBNAIL_HEIGHT, timestamp);
+                                             DEFAULT_THUMBNAIL_HEIGHT, timestamp, true);
                 Log.i(TAG, "Built thumbnail and screennail for " + origId + " in " + (SystemClock.uptimeMillis() - time));
             } catch (IOException e) {
                 Log.e(TAG, "Could not store thumbnail on sdcard.");
@@ -658,41 +670,16 @@ public final class CacheService extends IntentService {
         }
 
         /* Build thumbnails for images */
-        ImageList list = getImageList(context);
-        final int size = (list.ids == null) ? 0 : list.ids.length;
-        final long[] ids = list.ids;
-        final long[] timestamp = list.timestamp;
-        final long[] thumbnailIds = list.thumbids;
-        final DiskCache thumbnailCache = LocalDataSource.sThumbnailCache;
-        for (int i = 0; i < size; ++i) {
-            if (Thread.interrupted()) {
-                return;
-            }
-            final long id = ids[i];
-            final long timeModifiedInSec = timestamp[i];
-            final long thumbnailId = thumbnailIds[i];
-            if (!isInThumbnailerSkipList(thumbnailId)) {
-                if (!thumbnailCache.isDataAvailable(thumbnailId, timeModifiedInSec * 1000)) {
-                    try {
-                        byte[] retVal = buildThumbnailForId(context, thumbnailCache, thumbnailId, id, false, DEFAULT_THUMBNAIL_WIDTH,
-                                                            DEFAULT_THUMBNAIL_HEIGHT, timeModifiedInSec * 1000);
-
-                        if (retVal == null || retVal.length == 0) {
-                            // There was an error in building the thumbnail.
-                            // We record this thumbnail id
-                            addToThumbnailerSkipList(thumbnailId);
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "Unable to write to sdcard. Could not populate DiskCache with thumbnails.");
-                        return;
-                    }
-                }
-            }
+        final ImageList imageList = getImageList(context);
+        // Every missing thumbnail is filled in first, from the embedded EXIF
+        // thumbnail where possible. Those are replaced with thumbnails built
+        // from the full images only once nothing else is left to do.
+        if (!buildImageThumbnails(context, imageList, true)) {
+            return;
         }
 
-
         /* Build thumbnails for videos */
-        list = getVideoList(context);
+        final ImageList list = getVideoList(context);
         final int videoListSize = (list.ids == null) ? 0 : list.ids.length;
         final long[] videoIds = list.ids;
         final long[] videoTimestamp = list.timestamp;
@@ -709,7 +696,7 @@ public final class CacheService extends IntentService {
                 if (!videoThumbnailCache.isDataAvailable(thumbnailId, timeModifiedInSec * 1000)) {
                     try {
                         byte[] retVal = buildThumbnailForId(context, videoThumbnailCache, thumbnailId, id, true, DEFAULT_THUMBNAIL_WIDTH,
-                                                            DEFAULT_THUMBNAIL_HEIGHT, timeModifiedInSec * 1000);
+                                                            DEFAULT_THUMBNAIL_HEIGHT, timeModifiedInSec * 1000, false);
 
                         if (retVal == null || retVal.length == 0) {
                             // There was an error in building the thumbnail.
@@ -723,9 +710,60 @@ public final class CacheService extends IntentService {
                 }
             }
         }
+
+        /* Rebuild provisional image thumbnails from the full images */
+        if (!buildImageThumbnails(context, imageList, false)) {
+            return;
+        }
         Log.i(TAG, "DiskCache ready for all thumbnails.");
     }
 
+    /**
+     * Builds the missing thumbnails of the given images, provisionally where
+     * allowed, or else rebuilds the provisional ones from the full images.
+     * Returns false if the thumbnailer has to stop.
+     */
+    private static boolean buildImageThumbnails(final Context context, final ImageList list, final boolean allowProvisional) {
+        final int size = (list.ids == null) ? 0 : list.ids.length;
+        final long[] ids = list.ids;
+        final long[] timestamp = list.timestamp;
+        final long[] thumbnailIds = list.thumbids;
+        final DiskCache thumbnailCache = LocalDataSource.sThumbnailCache;
+        try {
+            for (int i = 0; i < size; ++i) {
+                if (Thread.interrupted()) {
+                    return false;
+                }
+                final long id = ids[i];
+                final long timeModifiedInMs = timestamp[i] * 1000;
+                final long thumbnailId = thumbnailIds[i];
+                if (!isInThumbnailerSkipList(thumbnailId)) {
+                    final boolean isMissing = !thumbnailCache.isDataAvailable(thumbnailId, timeModifiedInMs);
+                    if (allowProvisional ? isMissing : (isMissing || isProvisionalThumbnail(thumbnailId, timeModifiedInMs))) {
+                        try {
+                            byte[] retVal = buildThumbnailForId(context, thumbnailCache, thumbnailId, id, false,
+                                    DEFAULT_THUMBNAIL_WIDTH, DEFAULT_THUMBNAIL_HEIGHT, timeModifiedInMs, allowProvisional);
+
+                            if (retVal == null || retVal.length == 0) {
+                                // There was an error in building the thumbnail.
+                                // We record this thumbnail id
+                                addToThumbnailerSkipList(thumbnailId);
+                            }
+                        } catch (IOException e) {
+                            Log.e(TAG, "Unable to write to sdcard. Could not populate DiskCache with thumbnails.");
+                            return false;
+                        }
+                    }
+                }
+            }
+        } finally {
+            // The provisional marks are written out once per pass rather than
+            // once per thumbnail.
+            sProvisionalThumbnailIds.flush();
+        }
+        return true;
+    }
+
     private static void addToThumbnailerSkipList(long thumbnailId) {
         try {
             sSkipThumbnailIds.put(thumbnailId, sDummyData, 0);
@@ -764,9 +802,93 @@ public final class CacheService extends IntentService {
         return false;
     }
 
-    private static final byte[] buildThumbnailForId(final Context context, final DiskCache thumbnailCache, final long thumbId,
-            final long origId, final boolean isVideo, final int thumbnailWidth, final int thumbnailHeight, final long timestamp)
+    private static boolean isProvisionalThumbnail(long thumbnailId, long timestamp) {
+        if (sProvisionalThumbnailIds.isDataAvailable(thumbnailId, timestamp)) {
+            byte[] data = sProvisionalThumbnailIds.get(thumbnailId, timestamp);
+            if ((data != null) && (data.length > 0) && data[0] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds a thumbnail out of the JPEG thumbnail most cameras embed in the
+     * EXIF header, which costs a fraction of decoding the full image. The
+     * result is recorded as provisional so that the thumbnailer rebuilds it
+     * from the full image when idle. Returns null if the image carries no
+     * usable embedded thumbnail.
+     */
+    private static final byte[] buildProvisionalThumbnail(final Context context, final DiskCache thumbnailCache,
+            final long thumbId, final long origId, final int thumbnailWidth, final int thumbnailHeight, final long timestamp)
                 throws IOException {
+        final Uri uri = Uri.parse(BASE_CONTENT_STRING_IMAGES + origId);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        ParcelFileDescriptor fileDescriptor = null;
+        FileInputStream stream = null;
+        Bitmap bitmap = null;
+        try {
+            fileDescriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            stream = new FileInputStream(fileDescriptor.getFileDescriptor());
+            final ExifReader exif = ExifReader.get();
+            if (!exif.read(stream.getChannel()) || !exif.hasThumbnail()) {
+                return null;
+            }
+            // The EXIF reads leave the file position at the start.
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fileDescriptor.getFileDescriptor(), null, options);
+            final int imageWidth = options.outWidth;
+            final int imageHeight = options.outHeight;
+            if (imageWidth <= 0 || imageHeight <= 0) {
+                return null;
+            }
+            final byte[] jpeg = exif.getThumbnail();
+            options.inJustDecodeBounds = false;
+            options.inDither = false;
+            options.inScaled = false;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+            if (bitmap == null) {
+                return null;
+            }
+            final int width = bitmap.getWidth();
+            final int height = bitmap.getHeight();
+            final float aspectError = Math.abs((float) width * imageHeight / (height * imageWidth) - 1.0f);
+            if (width * 2 < thumbnailWidth || height * 2 < thumbnailHeight || aspectError > MAX_EXIF_THUMBNAIL_ASPECT_ERROR) {
+                bitmap.recycle();
+                return null;
+            }
+        } catch (Exception e) {
+            // Not a JPEG, or the file could not be opened.
+            return null;
+        } finally {
+            try {
+                if (stream != null) {
+                    stream.close();
+                }
+                if (fileDescriptor != null) {
+                    fileDescriptor.close();
+                }
+            } catch (IOException e) {
+                ;
+            }
+        }
+        final byte[] retVal = writeBitmapToCache(thumbnailCache, thumbId, origId, bitmap, thumbnailWidth, thumbnailHeight,
+                timestamp);
+        if (retVal != null) {
+            try {
+                sProvisionalThumbnailIds.put(thumbId, sDummyData, timestamp);
+            } catch (IOException e) {
+                // The thumbnail is then kept as if it were final.
+                Log.e(TAG, "Error writing provisional thumbnail list to cache.");
+            }
+        }
+        return retVal;
+    }
+
+    private static final byte[] buildThumbnailForId(final Context context, final DiskCache thumbnailCache, final long thumbId,
+            final long origId, final boolean isVideo, final int thumbnailWidth, final int thumbnailHeight, final long timestamp,
+            final boolean allowProvisional) throws IOException {
         if (origId == Shared.INVALID) {
             return null;
         }
@@ -774,6 +896,13 @@ public final class CacheService extends IntentService {
             Bitmap bitmap = null;
             Thread.sleep(1);
             if (!isVideo) {
+                if (allowProvisional) {
+                    final byte[] retVal = buildProvisionalThumbnail(context, thumbnailCache, thumbId, origId, thumbnailWidth,
+                            thumbnailHeight, timestamp);
+                    if (retVal != null) {
+                        return retVal;
+                    }
+                }
                 final String uriString = BASE_CONTENT_STRING_IMAGES + origId;
                 UriTexture.invalidateCache(thumbId, 1024);
                 try {
@@ -791,34 +920,69 @@ public final class CacheService extends IntentService {
                     return null;
                 }
             } else {
-                new Thread() {
-                    public void run() {
-                        try {
-                            Thread.sleep(5000);
-                        } catch (InterruptedException e) {
-                            ;
-                        }
-                        try {
-                            MediaStore.Video.Thumbnails.cancelThumbnailRequest(context.getContentResolver(), origId);
-                        } catch (Exception e) {
-                            ;
-                        }
-                    }
-                }.start();
-                bitmap = MediaStore.Video.Thumbnails.getThumbnail(context.getContentResolver(), origId,
-                        MediaStore.Video.Thumbnails.MICRO_KIND, null);
+                final ScheduledFuture<?> timeout = Timeouts.cancelVideoThumbnailAfter(context.getContentResolver(), origId,
+                        VIDEO_THUMBNAIL_TIMEOUT);
+                try {
+                    bitmap = MediaStore.Video.Thumbnails.getThumbnail(context.getContentResolver(), origId,
+                            MediaStore.Video.Thumbnails.MICRO_KIND, null);
+                } finally {
+                    timeout.cancel(false);
+                }
             }
             if (bitmap == null) {
                 return null;
             }
+            if (!isVideo) {
+                // The image is already decoded, so the screennail costs only
+                // a scale and an encode.
+                writeScreennailToCache(thumbId, bitmap, timestamp);
+            }
             final byte[] retVal = writeBitmapToCache(thumbnailCache, thumbId, origId, bitmap, thumbnailWidth, thumbnailHeight,
                     timestamp);
+            if (retVal != null && !isVideo && isProvisionalThumbnail(thumbId, timestamp)) {
+                // DiskCache does not persist deletions, so overwrite the mark.
+                sProvisionalThumbnailIds.put(thumbId, sNotProvisionalData, timestamp);
+            }
             return retVal;
         } catch (InterruptedException e) {
             return null;
         }
     }
 
+    /**
+     * Stores a SCREENNAIL_SIZE rendition of the decoded image unless one is
+     * already cached. The bitmap is left untouched.
+     */
+    public static final void writeScreennailToCache(final long thumbId, final Bitmap bitmap, final long timestamp) {
+        final DiskCache screennailCache = LocalDataSource.sScreennailCache;
+        synchronized (screennailCache) {
+            if (screennailCache.isDataAvailable(thumbId, timestamp)) {
+                return;
+            }
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final float scale = Math.min(1.0f, (float) SCREENNAIL_SIZE / Math.max(width, height));
+        Bitmap screennail = null;
+        try {
+            screennail = (scale < 1.0f) ? Bitmap.createScaledBitmap(bitmap, Math.max(1, (int) (width * scale)), Math.max(1,
+                    (int) (height * scale)), true) : bitmap;
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(32768);
+            screennail.compress(Bitmap.CompressFormat.JPEG, 80, output);
+            synchronized (screennailCache) {
+                screennailCache.put(thumbId, output.toByteArray(), timestamp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not store screennail on sdcard.");
+        } catch (OutOfMemoryError e) {
+            // The screennail is optional.
+        } finally {
+            if (screennail != null && screennail != bitmap) {
+                screennail.recycle();
+            }
+        }
+    }
+
     public static final byte[] writeBitmapToCache(final DiskCache thumbnailCache, final long thumbId, final long origId,
             final Bitmap bitmap, final int thumbnailWidth, final int thumbnailHeight, final long timestamp)
                 throws IOException {
@@ -1061,7 +1225,11 @@ public final class CacheService extends IntentService {
         return retVal;
     }
 
-    private static final byte[] longToByteArray(final long l) {
+    static final long toLong(final byte[] data) {
+        return ByteBuffer.wrap(data).getLong(0);
+    }
+
+    static final byte[] longToByteArray(final long l) {
         final byte[] bArray = new byte[8];
         final ByteBuffer bBuffer = ByteBuffer.wrap(bArray);
         final LongBuffer lBuffer = bBuffer.asLongBuffer();
@@ -1299,6 +1467,8 @@ public final class CacheService extends IntentService {
             whereClause = whereString.toString();
             Log.i(TAG, "Updating dirty albums where " + whereClause);
         }
+        final ArrayList<MediaItem> itemsToScan = new ArrayList<MediaItem>();
+        long[] setIdsToScan = null;
         try {
             final Cursor cursorImages = cr.query(uriImages, PROJECTION_IMAGES, whereClause, null, DEFAULT_IMAGE_SORT_ORDER);
             final Cursor cursorVideos = cr.query(uriVideos, PROJECTION_VIDEOS, whereClause, null, DEFAULT_VIDEO_SORT_ORDER);
@@ -1318,6 +1488,7 @@ public final class CacheService extends IntentService {
                         final MediaSet set = sets.get(i);
                         set.setNumExpectedItems(approximateCountPerSet);
                     }
+                    long[] scanSetIds = new long[16];
                     do {
                         if (Thread.interrupted()) {
                             return;
@@ -1327,14 +1498,28 @@ public final class CacheService extends IntentService {
                         if (isVideo) {
                             populateVideoItemFromCursor(item, cr, sortCursor, CacheService.BASE_CONTENT_STRING_VIDEOS);
                         } else {
-                            populateMediaItemFromCursor(item, cr, sortCursor, CacheService.BASE_CONTENT_STRING_IMAGES);
+                            populateMediaItemFromCursor(item, cr, sortCursor, CacheService.BASE_CONTENT_STRING_IMAGES, false);
                         }
                         final long setId = sortCursor.getLong(MEDIA_BUCKET_ID_INDEX);
+                        // Checked before the item is added, since it may patch
+                        // the date taken the set bounds are computed from.
+                        final boolean needsScan = !isVideo && DateTakenBackfill.needsScan(item);
                         final MediaSet set = findSet(setId, acceleratedSets);
                         if (set != null) {
                             set.addItem(item);
                         }
+                        if (needsScan) {
+                            final int numToScan = itemsToScan.size();
+                            if (numToScan == scanSetIds.length) {
+                                final long[] newSetIds = new long[numToScan * 2];
+                                System.arraycopy(scanSetIds, 0, newSetIds, 0, numToScan);
+                                scanSetIds = newSetIds;
+                            }
+                            scanSetIds[numToScan] = setId;
+                            itemsToScan.add(item);
+                        }
                     } while (sortCursor.moveToNext());
+                    setIdsToScan = scanSetIds;
                 }
             } finally {
                 if (sortCursor != null)
@@ -1348,6 +1533,10 @@ public final class CacheService extends IntentService {
             writeItemsToCache(sets);
             Log.i(TAG, "Done building items.");
         }
+        if (setIdsToScan != null && !Thread.interrupted()) {
+            // The dates found are patched into the cache once available.
+            DateTakenBackfill.enqueue(context, itemsToScan, setIdsToScan);
+        }
     }
 
     private static final void writeSetsToCache(final ArrayList<MediaSet> sets) {
@@ -0,0 +1,245 @@
+package com.cooliris.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images;
+import android.util.Log;
+
+import com.cooliris.media.DiskCache;
+import com.cooliris.media.IoWorkers;
+import com.cooliris.media.LongHashMap;
+import com.cooliris.media.MediaItem;
+
+/**
+ * Reads the date taken out of the EXIF headers of images that MediaStore has
+ * no valid date for, off the album cache build. Images are scanned in
+ * parallel and the dates written back to MediaStore in batches. Each scanned
+ * image is recorded in a DiskCache keyed by id and stamped with its
+ * modification time, so an interrupted job resumes where it stopped and
+ * images without a usable date are never scanned twice. Albums whose dates
+ * changed are marked dirty so that the album cache picks them up.
+ */
+public final class DateTakenBackfill {
+    private static final String TAG = "DateTakenBackfill";
+    private static final int BATCH_SIZE = 64;
+    // Minimum time between refreshes of the albums that received dates.
+    private static final long DIRTY_INTERVAL = 5000; // ms.
+    private static final long NO_DATE_TAKEN = -1L;
+
+    private static final DiskCache sDateTakenCache = new DiskCache("local-date-taken");
+    private static final AtomicReference<Thread> BACKFILL_THREAD = new AtomicReference<Thread>();
+    private static final ArrayList<Entry> sQueue = new ArrayList<Entry>();
+    private static final LongHashMap<Entry> sQueuedIds = new LongHashMap<Entry>();
+
+    private DateTakenBackfill() {
+    }
+
+    /**
+     * Applies a previously scanned date taken to the item. Returns true if the
+     * item still has to be scanned.
+     */
+    public static boolean needsScan(final MediaItem item) {
+        if (item.isDateTakenValid() || item.mTriedRetrievingExifDateTaken || item.mFilePath == null
+                || !(item.mFilePath.endsWith(".jpg") || item.mFilePath.endsWith(".jpeg"))) {
+            return false;
+        }
+        final DiskCache cache = sDateTakenCache;
+        final byte[] data;
+        synchronized (cache) {
+            if (!cache.isDataAvailable(item.mId, item.mDateModifiedInSec)) {
+                return true;
+            }
+            data = cache.get(item.mId, item.mDateModifiedInSec);
+        }
+        if (data == null || data.length != 8) {
+            return true;
+        }
+        final long dateTaken = CacheService.toLong(data);
+        if (dateTaken != NO_DATE_TAKEN) {
+            item.mDateTakenInMs = dateTaken;
+        }
+        item.mTriedRetrievingExifDateTaken = true;
+        return false;
+    }
+
+    /**
+     * Queues the given items of the given sets for scanning and starts the job
+     * if it is not already running.
+     */
+    public static void enqueue(final Context context, final ArrayList<MediaItem> items, final long[] setIds) {
+        final int numItems = items.size();
+        if (numItems == 0) {
+            return;
+        }
+        synchronized (sQueue) {
+            for (int i = 0; i < numItems; ++i) {
+                final MediaItem item = items.get(i);
+                if (sQueuedIds.get(item.mId) == null) {
+                    final Entry entry = new Entry(item.mId, setIds[i], item.mFilePath, item.mDateModifiedInSec);
+                    sQueue.add(entry);
+                    sQueuedIds.put(item.mId, entry);
+                }
+            }
+            if (BACKFILL_THREAD.get() != null) {
+                return;
+            }
+            final Thread thread = new Thread(TAG) {
+                public void run() {
+                    try {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runJob(context);
+                    } finally {
+                        BACKFILL_THREAD.compareAndSet(this, null);
+                    }
+                }
+            };
+            BACKFILL_THREAD.set(thread);
+            thread.start();
+        }
+    }
+
+    private static void runJob(final Context context) {
+        final ContentResolver cr = context.getContentResolver();
+        final LongHashMap<Entry> dirtySets = new LongHashMap<Entry>();
+        final ArrayList<Long> dirtySetIds = new ArrayList<Long>();
+        long lastDirtyTime = SystemClock.uptimeMillis();
+        int numScanned = 0;
+        while (!Thread.interrupted()) {
+            final ArrayList<Entry> batch = takeBatch();
+            if (batch == null) {
+                break;
+            }
+            scan(batch);
+            writeBatch(cr, batch);
+            numScanned += batch.size();
+            for (int i = 0, numEntries = batch.size(); i < numEntries; ++i) {
+                final Entry entry = batch.get(i);
+                if (entry.dateTaken != NO_DATE_TAKEN && dirtySets.get(entry.setId) == null) {
+                    dirtySets.put(entry.setId, entry);
+                    dirtySetIds.add(entry.setId);
+                }
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (now - lastDirtyTime > DIRTY_INTERVAL) {
+                markDirty(context, dirtySets, dirtySetIds);
+                lastDirtyTime = now;
+            }
+        }
+        markDirty(context, dirtySets, dirtySetIds);
+        Log.i(TAG, "Scanned " + numScanned + " images for their date taken.");
+    }
+
+    private static ArrayList<Entry> takeBatch() {
+        synchronized (sQueue) {
+            final ArrayList<Entry> queue = sQueue;
+            final int numEntries = Math.min(BATCH_SIZE, queue.size());
+            if (numEntries == 0) {
+                // Let the next enqueue start a new thread.
+                BACKFILL_THREAD.set(null);
+                return null;
+            }
+            final ArrayList<Entry> batch = new ArrayList<Entry>(numEntries);
+            for (int i = 0; i < numEntries; ++i) {
+                final Entry entry = queue.get(i);
+                batch.add(entry);
+                sQueuedIds.remove(entry.id);
+            }
+            queue.subList(0, numEntries).clear();
+            return batch;
+        }
+    }
+
+    /**
+     * Reads the EXIF date of every entry of the batch on the shared IoWorkers
+     * threads.
+     */
+    private static void scan(final ArrayList<Entry> batch) {
+        try {
+            IoWorkers.runAll(batch.size(), new IoWorkers.Task() {
+                public void run(int index) {
+                    final Entry entry = batch.get(index);
+                    entry.dateTaken = CacheService.readExifDateTaken(entry.filePath);
+                    entry.scanned = true;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeBatch(final ContentResolver cr, final ArrayList<Entry> batch) {
+        final int numEntries = batch.size();
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(numEntries);
+        for (int i = 0; i < numEntries; ++i) {
+            final Entry entry = batch.get(i);
+            if (entry.scanned && entry.dateTaken != NO_DATE_TAKEN) {
+                final Uri uri = Uri.parse(CacheService.BASE_CONTENT_STRING_IMAGES + entry.id);
+                operations.add(ContentProviderOperation.newUpdate(uri).withValue(Images.ImageColumns.DATE_TAKEN,
+                        entry.dateTaken).build());
+            }
+        }
+        if (!operations.isEmpty()) {
+            try {
+                cr.applyBatch(MediaStore.AUTHORITY, operations);
+            } catch (Exception e) {
+                // If the database operation fails for any reason, the dates
+                // recorded below are still applied on the next cache build.
+                Log.e(TAG, "Unable to update the date taken of " + operations.size() + " images.");
+            }
+        }
+
+        // Record progress.
+        // The cache build reads the cache concurrently from needsScan().
+        final DiskCache cache = sDateTakenCache;
+        synchronized (cache) {
+            try {
+                for (int i = 0; i < numEntries; ++i) {
+                    final Entry entry = batch.get(i);
+                    if (!entry.scanned) {
+                        // Interrupted before this one was read; leave it for
+                        // the next cache build.
+                        continue;
+                    }
+                    cache.put(entry.id, CacheService.longToByteArray(entry.dateTaken), entry.dateModifiedInSec);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to record the date taken of scanned images.");
+            }
+            cache.flush();
+        }
+    }
+
+    private static void markDirty(final Context context, final LongHashMap<Entry> dirtySets, final ArrayList<Long> dirtySetIds) {
+        final int numSets = dirtySetIds.size();
+        for (int i = 0; i < numSets; ++i) {
+            CacheService.markDirty(context, dirtySetIds.get(i));
+        }
+        dirtySets.clear();
+        dirtySetIds.clear();
+    }
+
+    private static final class Entry {
+        public final long id;
+        public final long setId;
+        public final String filePath;
+        public final long dateModifiedInSec;
+        public long dateTaken = NO_DATE_TAKEN;
+        public volatile boolean scanned;
+
+        public Entry(long id, long setId, String filePath, long dateModifiedInSec) {
+            this.id = id;
+            this.setId = setId;
+            this.filePath = filePath;
+            this.dateModifiedInSec = dateModifiedInSec;
+        }
+    }
+}
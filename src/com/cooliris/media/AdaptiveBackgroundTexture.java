@@ -21,6 +21,13 @@ public final class AdaptiveBackgroundTexture extends Texture {
     private static final int START_FADE_X = 96;
     private static final int THUMBNAIL_MAX_X = 128;
 
+    private static final Paint sPaint = new Paint();
+
+    // Scratch buffers shared by all backgrounds, guarded by the class lock.
+    private static int[] sPixels = new int[0];
+    private static int[] sTransposedPixels = new int[0];
+    private static Bitmap sFiltered;
+
     private final int mWidth;
     private final int mHeight;
     private final Bitmap mSource;
@@ -31,6 +38,9 @@ public final class AdaptiveBackgroundTexture extends Texture {
         for (int i = KERNEL_SIZE * NUM_COLORS - 1; i >= 0; --i) {
             KERNEL_NORM[i] = i / KERNEL_SIZE;
         }
+        sPaint.setFilterBitmap(true);
+        sPaint.setDither(true);
+        sPaint.setColorFilter(new LightingColorFilter(MULTIPLY_COLOR, 0));
     }
 
     public AdaptiveBackgroundTexture(Bitmap source, int width, int height) {
@@ -62,17 +72,26 @@ public final class AdaptiveBackgroundTexture extends Texture {
         // Determine a crop rectangle for the source image that is the aspect
         // ratio of the destination.
         Bitmap source = mSource;
+        boolean ownsSource = false;
         if (source == null) {
             if (mBaseTexture != null) {
                 source = mBaseTexture.load(view);
                 if (source == null) {
                     return null;
                 }
+                ownsSource = true;
             } else {
                 return null;
             }
         }
-        source = Utils.resizeBitmap(source, THUMBNAIL_MAX_X);
+        final Bitmap resized = Utils.resizeBitmap(source, THUMBNAIL_MAX_X);
+        if (resized != source) {
+            if (ownsSource) {
+                source.recycle();
+            }
+            source = resized;
+            ownsSource = true;
+        }
         int sourceWidth = source.getWidth();
         int sourceHeight = source.getHeight();
         int destWidth = mWidth;
@@ -100,37 +119,51 @@ public final class AdaptiveBackgroundTexture extends Texture {
             scale = 1f / fitY;
         }
 
-        // Create a source and destination buffer for the image.
-        int numPixels = cropWidth * cropHeight;
-        int[] in = new int[numPixels];
-        int[] tmp = new int[numPixels];
-
-        // Get the source pixels as 32-bit ARGB.
-        source.getPixels(in, 0, cropWidth, cropX, cropY, cropWidth, cropHeight);
+        Bitmap output = Bitmap.createBitmap(destWidth, destHeight, Bitmap.Config.ARGB_8888);
+        synchronized (AdaptiveBackgroundTexture.class) {
+            // Grow the scratch buffers for the image if needed.
+            int numPixels = cropWidth * cropHeight;
+            if (sPixels.length < numPixels) {
+                sPixels = new int[numPixels];
+                sTransposedPixels = new int[numPixels];
+            }
+            int[] in = sPixels;
+            int[] tmp = sTransposedPixels;
 
-        // Box blur is a separable kernel, so it is decomposed into a horizontal
-        // and vertical pass.
-        // The filter function applies the kernel across each row and transposes
-        // the output.
-        // Hence we apply it twice to provide efficient horizontal and vertical
-        // convolution.
-        // The filter discards the alpha channel.
-        boxBlurFilter(in, tmp, cropWidth, cropHeight, cropWidth);
-        boxBlurFilter(tmp, in, cropHeight, cropWidth, START_FADE_X);
+            // Get the source pixels as 32-bit ARGB.
+            source.getPixels(in, 0, cropWidth, cropX, cropY, cropWidth, cropHeight);
+            if (ownsSource) {
+                source.recycle();
+            }
 
-        // Return a bitmap scaled to the desired size.
-        Bitmap filtered = Bitmap.createBitmap(in, cropWidth, cropHeight, Bitmap.Config.ARGB_8888);
+            // Box blur is a separable kernel, so it is decomposed into a
+            // horizontal and vertical pass.
+            // The filter function applies the kernel across each row and
+            // transposes the output.
+            // Hence we apply it twice to provide efficient horizontal and
+            // vertical convolution.
+            // The filter discards the alpha channel.
+            boxBlurFilter(in, tmp, cropWidth, cropHeight, cropWidth);
+            boxBlurFilter(tmp, in, cropHeight, cropWidth, START_FADE_X);
+
+            // Copy the result into a bitmap that is kept for the next
+            // background of the same size.
+            Bitmap filtered = sFiltered;
+            if (filtered == null || filtered.getWidth() != cropWidth || filtered.getHeight() != cropHeight) {
+                if (filtered != null) {
+                    filtered.recycle();
+                }
+                filtered = Bitmap.createBitmap(cropWidth, cropHeight, Bitmap.Config.ARGB_8888);
+                sFiltered = filtered;
+            }
+            filtered.setPixels(in, 0, cropWidth, 0, 0, cropWidth, cropHeight);
 
-        // Composite the bitmap scaled to the target size and darken the pixels.
-        Bitmap output = Bitmap.createBitmap(destWidth, destHeight, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(output);
-        Paint paint = new Paint();
-        paint.setFilterBitmap(true);
-        paint.setDither(true);
-        paint.setColorFilter(new LightingColorFilter(MULTIPLY_COLOR, 0));
-        canvas.scale(scale, scale);
-        canvas.drawBitmap(filtered, 0f, 0f, paint);
-        filtered.recycle();
+            // Composite the bitmap scaled to the target size and darken the
+            // pixels.
+            Canvas canvas = new Canvas(output);
+            canvas.scale(scale, scale);
+            canvas.drawBitmap(filtered, 0f, 0f, sPaint);
+        }
 
         // Clear the texture
         mBaseTexture = null;
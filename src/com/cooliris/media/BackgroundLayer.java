@@ -1,18 +1,18 @@
 package com.cooliris.media;
 
-import java.util.HashMap;
 import javax.microedition.khronos.opengles.GL11;
-import android.util.Log;
 import com.cooliris.media.RenderView.Lists;
 
 public class BackgroundLayer extends Layer {
-    private static final String TAG = "AdaptiveBackground";
     private final GridLayer mGridLayer;
     private CrossFadingTexture mBackground;
     private static final int MAX_ADAPTIVES_TO_KEEP_IN_MEMORY = 16;
 
-    private final HashMap<Texture, AdaptiveBackgroundTexture> mCacheAdaptiveTexture = new HashMap<Texture, AdaptiveBackgroundTexture>();
-    private int mCount;
+    // Adaptive backgrounds by the thumbnail they were made from, most recently
+    // used first.
+    private final Texture[] mAdaptiveThumbnails = new Texture[MAX_ADAPTIVES_TO_KEEP_IN_MEMORY];
+    private final AdaptiveBackgroundTexture[] mAdaptiveTextures = new AdaptiveBackgroundTexture[MAX_ADAPTIVES_TO_KEEP_IN_MEMORY];
+    private int mNumAdaptives;
     private int mBackgroundBlitWidth;
     private int mBackgroundOverlap;
     private Texture mFallbackBackground = null;
@@ -58,18 +58,28 @@ public class BackgroundLayer extends Layer {
         if (item == null || itemThumbnail == null || !itemThumbnail.isLoaded()) {
             return mFallbackBackground;
         }
-        HashMap<Texture, AdaptiveBackgroundTexture> adaptives = mCacheAdaptiveTexture;
-        AdaptiveBackgroundTexture retVal = adaptives.get(itemThumbnail);
-        if (retVal == null) {
+        final Texture[] thumbnails = mAdaptiveThumbnails;
+        final AdaptiveBackgroundTexture[] textures = mAdaptiveTextures;
+        int index = 0;
+        while (index < mNumAdaptives && thumbnails[index] != itemThumbnail) {
+            ++index;
+        }
+        AdaptiveBackgroundTexture retVal;
+        if (index < mNumAdaptives) {
+            retVal = textures[index];
+        } else {
             retVal = new AdaptiveBackgroundTexture(itemThumbnail, ADAPTIVE_BACKGROUND_WIDTH, ADAPTIVE_BACKGROUND_HEIGHT);
-            if (mCount == MAX_ADAPTIVES_TO_KEEP_IN_MEMORY) {
-                mCount = 0;
-                adaptives.clear();
-                Log.i(TAG, "Clearing unused adaptive backgrounds.");
+            // Drop the least recently used background if the cache is full.
+            if (mNumAdaptives < MAX_ADAPTIVES_TO_KEEP_IN_MEMORY) {
+                ++mNumAdaptives;
             }
-            ++mCount;
-            adaptives.put(itemThumbnail, retVal);
+            index = mNumAdaptives - 1;
         }
+        // Move the background to the front.
+        System.arraycopy(thumbnails, 0, thumbnails, 1, index);
+        System.arraycopy(textures, 0, textures, 1, index);
+        thumbnails[0] = itemThumbnail;
+        textures[0] = retVal;
         return retVal;
     }
 
@@ -134,6 +144,10 @@ public class BackgroundLayer extends Layer {
     }
 
     public void clearCache() {
-        mCacheAdaptiveTexture.clear();
+        for (int i = 0; i < mNumAdaptives; ++i) {
+            mAdaptiveThumbnails[i] = null;
+            mAdaptiveTextures[i] = null;
+        }
+        mNumAdaptives = 0;
     }
 }
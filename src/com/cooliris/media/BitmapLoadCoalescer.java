@@ -0,0 +1,140 @@
+package com.cooliris.media;
+
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Collapses concurrent loads of the same bitmap into a single decode. The first
+ * caller for a key runs the loader while later callers for the same key wait
+ * for its result. Since every consumer recycles the bitmap it is handed, the
+ * result is reference counted: all participants but the last receive a copy
+ * and the last one receives the decoded bitmap itself.
+ */
+public final class BitmapLoadCoalescer {
+    public interface Loader {
+        Bitmap load() throws Exception;
+    }
+
+    private final HashMap<Long, Flight> mFlights = new HashMap<Long, Flight>();
+    private int mNumRequests;
+    private int mNumLoads;
+    private int mNumCoalesced;
+
+    public Bitmap load(long key, Loader loader) throws Exception {
+        Flight flight = null;
+        boolean leader = false;
+        synchronized (mFlights) {
+            ++mNumRequests;
+            flight = mFlights.get(key);
+            if (flight == null) {
+                flight = new Flight();
+                mFlights.put(key, flight);
+                leader = true;
+                ++mNumLoads;
+            } else {
+                ++mNumCoalesced;
+            }
+            ++flight.refCount;
+        }
+        if (leader) {
+            Throwable error = null;
+            Bitmap bitmap = null;
+            try {
+                bitmap = loader.load();
+            } catch (Throwable e) {
+                error = e;
+            }
+            // Requests arriving from now on start a new flight, so the
+            // reference count of this one can no longer grow.
+            synchronized (mFlights) {
+                mFlights.remove(key);
+            }
+            synchronized (flight) {
+                flight.bitmap = bitmap;
+                flight.failed = (error != null);
+                flight.done = true;
+                flight.notifyAll();
+            }
+            if (error != null) {
+                synchronized (flight) {
+                    --flight.refCount;
+                }
+                if (error instanceof Exception) {
+                    throw (Exception) error;
+                }
+                throw (Error) error;
+            }
+        } else {
+            synchronized (flight) {
+                try {
+                    while (!flight.done) {
+                        flight.wait();
+                    }
+                } catch (InterruptedException e) {
+                    release(flight);
+                    return null;
+                }
+            }
+            if (flight.failed) {
+                // The error belongs to the leader; try again on our own.
+                release(flight);
+                return loader.load();
+            }
+        }
+        return acquire(flight);
+    }
+
+    public int getNumRequests() {
+        synchronized (mFlights) {
+            return mNumRequests;
+        }
+    }
+
+    public int getNumLoads() {
+        synchronized (mFlights) {
+            return mNumLoads;
+        }
+    }
+
+    public int getNumCoalesced() {
+        synchronized (mFlights) {
+            return mNumCoalesced;
+        }
+    }
+
+    private static Bitmap acquire(Flight flight) {
+        synchronized (flight) {
+            final Bitmap bitmap = flight.bitmap;
+            if (--flight.refCount == 0 || bitmap == null) {
+                flight.bitmap = null;
+                return bitmap;
+            }
+            try {
+                Bitmap.Config config = bitmap.getConfig();
+                if (config == null) {
+                    config = Bitmap.Config.RGB_565;
+                }
+                return bitmap.copy(config, false);
+            } catch (OutOfMemoryError e) {
+                return null;
+            }
+        }
+    }
+
+    private static void release(Flight flight) {
+        synchronized (flight) {
+            if (--flight.refCount == 0 && flight.bitmap != null) {
+                flight.bitmap.recycle();
+                flight.bitmap = null;
+            }
+        }
+    }
+
+    private static final class Flight {
+        public int refCount;
+        public boolean done;
+        public boolean failed;
+        public Bitmap bitmap;
+    }
+}
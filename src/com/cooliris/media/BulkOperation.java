@@ -0,0 +1,102 @@
+package com.cooliris.media;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress and cancellation state of one operation on a selection of buckets,
+ * shared between the thread that performs it and the UI. Data sources report
+ * items as they finish and stop at the next batch boundary once the operation
+ * is canceled.
+ */
+public final class BulkOperation {
+    public interface Listener {
+        public abstract void onOperationProgress(BulkOperation operation);
+    }
+
+    private final int mOperation;
+    private final int mNumItems;
+    private final AtomicInteger mNumItemsDone = new AtomicInteger();
+    private final Listener mListener;
+    private volatile boolean mCanceled;
+    // Guarded by this.
+    private boolean mStarted;
+
+    public BulkOperation(int operation, int numItems, Listener listener) {
+        mOperation = operation;
+        mNumItems = numItems;
+        mListener = listener;
+    }
+
+    /**
+     * @return the number of items an operation on these buckets touches,
+     *         counting an entire set by the number of items it is expected to
+     *         hold.
+     */
+    public static int countItems(ArrayList<MediaBucket> mediaBuckets) {
+        int numItems = 0;
+        final int numBuckets = mediaBuckets.size();
+        for (int i = 0; i < numBuckets; ++i) {
+            final MediaBucket bucket = mediaBuckets.get(i);
+            if (bucket.mediaItems != null) {
+                numItems += bucket.mediaItems.size();
+            } else if (bucket.mediaSet != null) {
+                numItems += Math.max(1, bucket.mediaSet.getNumExpectedItems());
+            }
+        }
+        return numItems;
+    }
+
+    public int getOperation() {
+        return mOperation;
+    }
+
+    public int getNumItems() {
+        return mNumItems;
+    }
+
+    public int getNumItemsDone() {
+        return mNumItemsDone.get();
+    }
+
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    public synchronized void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * Cancels the operation unless it has already started.
+     * 
+     * @return true if the operation will not run.
+     */
+    public synchronized boolean cancelIfNotStarted() {
+        if (!mStarted) {
+            mCanceled = true;
+        }
+        return mCanceled;
+    }
+
+    /**
+     * Marks the operation as started, after which cancelIfNotStarted() no
+     * longer affects it.
+     * 
+     * @return false if the operation was canceled before it started.
+     */
+    public synchronized boolean start() {
+        if (mCanceled) {
+            return false;
+        }
+        mStarted = true;
+        return true;
+    }
+
+    public void onItemsDone(int numItems) {
+        mNumItemsDone.addAndGet(numItems);
+        if (mListener != null) {
+            mListener.onOperationProgress(this);
+        }
+    }
+}
@@ -30,19 +30,23 @@ public final class ConcatenatedDataSource implements DataSource {
         }
     }
 
-    public boolean performOperation(int operation, final ArrayList<MediaBucket> mediaBuckets, Object data) {
+    public boolean performOperation(int operation, final ArrayList<MediaBucket> mediaBuckets, Object data,
+            BulkOperation bulkOperation) {
         ArrayList<MediaBucket> singleBucket = new ArrayList<MediaBucket>(1);
         singleBucket.add(null);
         int numBuckets = mediaBuckets.size();
         boolean retVal = true;
         for (int i = 0; i < numBuckets; ++i) { // CR: iterator for
+            if (bulkOperation.isCanceled()) {
+                break;
+            }
             MediaBucket bucket = mediaBuckets.get(i);
             MediaSet set = bucket.mediaSet;
             if (set != null) {
                 DataSource dataSource = set.mDataSource;
                 if (dataSource != null) {
                     singleBucket.set(0, bucket);
-                    retVal &= dataSource.performOperation(operation, singleBucket, data);
+                    retVal &= dataSource.performOperation(operation, singleBucket, data, bulkOperation);
                 } else {
                     Log.e(TAG, "MediaSet was not added to the feed");
                 }
@@ -1,28 +1,40 @@
 package com.cooliris.media;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReferenceArray;
-
-public final class ConcurrentPool<E extends Object> {
-    private AtomicReferenceArray<E> mFreeList;
-    private AtomicInteger mFreeListIndex;
+/**
+ * A pool of preallocated objects that may be borrowed from any thread. Every
+ * thread gets a Pool of its own on first use, so creating and deleting objects
+ * never contends with other threads. Objects have to be deleted on the thread
+ * that created them; call get() once per method and use the returned Pool.
+ */
+public abstract class ConcurrentPool<E extends Object> {
+    private final int mCapacity;
+    private final ThreadLocal<Pool<E>> mPools = new ThreadLocal<Pool<E>>() {
+        @Override
+        protected Pool<E> initialValue() {
+            return createPool();
+        }
+    };
 
-    public ConcurrentPool(E[] objects) {
-        mFreeList = new AtomicReferenceArray<E>(objects);
-        mFreeListIndex = new AtomicInteger(objects.length);
+    public ConcurrentPool(int capacity) {
+        mCapacity = capacity;
     }
 
-    public E create() {
-        final int index = mFreeListIndex.decrementAndGet();
-        E object = mFreeList.get(index);
-        mFreeList.set(index, null);
-        return object;
+    /**
+     * Returns the pool of the calling thread.
+     */
+    public final Pool<E> get() {
+        return mPools.get();
     }
 
-    public void delete(E object) {
-        final int index = mFreeListIndex.getAndIncrement();
-        while (!mFreeList.compareAndSet(index, null, object)) {
-            Thread.yield();
+    protected abstract E newObject();
+
+    @SuppressWarnings("unchecked")
+    private Pool<E> createPool() {
+        final int capacity = mCapacity;
+        final E[] objects = (E[]) new Object[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            objects[i] = newObject();
         }
+        return new Pool<E>(objects);
     }
 }
@@ -12,7 +12,9 @@ public interface DataSource {
     // Called when the data source will no longer be used.
     void shutdown();
 
-    boolean performOperation(int operation, ArrayList<MediaBucket> mediaBuckets, Object data);
+    // Reports finished items to the bulk operation and stops early once it is
+    // canceled.
+    boolean performOperation(int operation, ArrayList<MediaBucket> mediaBuckets, Object data, BulkOperation bulkOperation);
 
     DiskCache getThumbnailCache();
 }
@@ -152,6 +152,7 @@ public final class DiskCache {
     public void deleteAll() {
         // Close all open files and clear data structures.
         shutdown();
+        mTailChunk = 0;
 
         // Delete all cache files.
         File cacheDirectory = new File(mCacheDirectoryPath);
@@ -163,6 +164,13 @@ public final class DiskCache {
         }
     }
 
+    /**
+     * Returns an upper bound of the bytes held in the chunk files.
+     */
+    public long getSize() {
+        return (long) (mTailChunk + 1) * CHUNK_SIZE;
+    }
+
     public void flush() {
         if (mNumInsertions != 0) {
             mNumInsertions = 0;
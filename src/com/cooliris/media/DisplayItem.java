@@ -23,6 +23,8 @@ public final class DisplayItem {
     private MediaItemTexture mThumbnailImage = null;
     private Texture mScreennailImage = null;
     private UriTexture mHiResImage = null;
+    private ImageTiles mImageTiles = null;
+    private Texture mCachedScreennailImage = null;
     private float mConvergenceSpeed = 1.0f;
 
     public final MediaItem mItemRef;
@@ -123,15 +125,41 @@ public final class DisplayItem {
         return texture;
     }
 
+    /**
+     * @return the cached screen-sized rendition of a local image, which loads
+     *         much faster than the screennail image, or null if none has been
+     *         cached. The cache is only read when the texture loads, on the
+     *         loader thread; a rendition that was not found leaves the texture
+     *         in the error state, which is remembered until the screennail
+     *         images are cleared.
+     */
+    public Texture getCachedScreennailImage() {
+        Texture texture = mCachedScreennailImage;
+        if (texture == null) {
+            final MediaItem item = mItemRef;
+            final MediaSet parentMediaSet = item.mParentMediaSet;
+            if (parentMediaSet == null || parentMediaSet.mDataSource.getThumbnailCache() != LocalDataSource.sThumbnailCache
+                    || item.getMediaType() != MediaItem.MEDIA_TYPE_IMAGE || item.mFilePath == null) {
+                return null;
+            }
+            texture = new ScreennailTexture(Utils.Crc64Long(item.mFilePath), item.mDateModifiedInSec * 1000);
+            mCachedScreennailImage = texture;
+        }
+        return (texture.mState == Texture.STATE_ERROR) ? null : texture;
+    }
+
     public void clearScreennailImage() {
         if (mScreennailImage != null) {
             mScreennailImage = null;
             mHiResImage = null;
+            mImageTiles = null;
         }
+        mCachedScreennailImage = null;
     }
 
     public void clearHiResImage() {
         mHiResImage = null;
+        mImageTiles = null;
     }
 
     public void clearThumbnail() {
@@ -209,6 +237,24 @@ public final class DisplayItem {
         return texture;
     }
 
+    /**
+     * @return the tiles used to draw this item zoomed in beyond its hi-res
+     *         image, or null if the item is not a local image.
+     */
+    public final ImageTiles getImageTiles() {
+        ImageTiles tiles = mImageTiles;
+        if (tiles == null) {
+            final MediaItem item = mItemRef;
+            if (item.mContentUri == null || !item.mContentUri.startsWith("content://")
+                    || item.getMediaType() != MediaItem.MEDIA_TYPE_IMAGE || item.mFilePath == null) {
+                return null;
+            }
+            tiles = new ImageTiles(item.mContentUri, Utils.Crc64Long(item.mFilePath), item.mDateModifiedInSec * 1000);
+            mImageTiles = tiles;
+        }
+        return tiles;
+    }
+
     public boolean isAlive() {
         return mAlive;
     }
@@ -1,20 +1,37 @@
 package com.cooliris.media;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 // CR: comment.
 public final class DisplayList {
     private DirectLinkedList<DisplayItem> mAnimatables = new DirectLinkedList<DisplayItem>();
-    private HashMap<MediaItem, DisplayItem> mDisplayMap = new HashMap<MediaItem, DisplayItem>(1024);
+    // Display items by the id of their media item, with open addressing and
+    // linear probing. Items of different sources may share an id, so a probe
+    // only stops at the display item of the very same media item.
+    private DisplayItem[] mTable = new DisplayItem[2048];
     private ArrayList<DisplayItem> mItems = new ArrayList<DisplayItem>(1024);
 
     public DisplayItem get(MediaItem item) {
-        HashMap<MediaItem, DisplayItem> displayMap = mDisplayMap;
-        DisplayItem displayItem = displayMap.get(item);
-        if (displayItem == null) {
-            displayItem = new DisplayItem(item);
-            displayMap.put(item, displayItem);
+        final DisplayItem[] table = mTable;
+        final int mask = table.length - 1;
+        int i = hash(item.mId) & mask;
+        DisplayItem displayItem;
+        while ((displayItem = table[i]) != null) {
+            if (displayItem.mItemRef == item) {
+                return displayItem;
+            }
+            i = (i + 1) & mask;
+        }
+        displayItem = new DisplayItem(item);
+        final int numItems = mItems.size() + 1;
+        if (numItems * 2 > table.length) {
+            rehash(table.length * 2);
+            insert(mTable, displayItem);
+        } else {
+            table[i] = displayItem;
+        }
+        synchronized (mItems) {
             mItems.add(displayItem);
         }
         return displayItem;
@@ -96,25 +113,57 @@ public final class DisplayList {
     }
 
     public void clear() {
-        mDisplayMap.clear();
+        Arrays.fill(mTable, null);
         synchronized (mItems) {
             mItems.clear();
         }
     }
 
     public void clearExcept(DisplayItem[] displayItems) {
-        HashMap<MediaItem, DisplayItem> displayMap = mDisplayMap;
-        displayMap.clear();
+        DisplayItem[] table = mTable;
+        if (displayItems.length * 2 > table.length) {
+            int capacity = table.length;
+            while (displayItems.length * 2 > capacity) {
+                capacity <<= 1;
+            }
+            table = new DisplayItem[capacity];
+            mTable = table;
+        } else {
+            Arrays.fill(table, null);
+        }
         synchronized (mItems) {
             mItems.clear();
             int numItems = displayItems.length;
             for (int i = 0; i < numItems; ++i) {
                 DisplayItem displayItem = displayItems[i];
                 if (displayItem != null) {
-                    displayMap.put(displayItem.mItemRef, displayItem);
+                    insert(table, displayItem);
                     mItems.add(displayItem);
                 }
             }
         }
     }
+
+    private void rehash(int capacity) {
+        final DisplayItem[] table = new DisplayItem[capacity];
+        final ArrayList<DisplayItem> items = mItems;
+        for (int i = 0, numItems = items.size(); i < numItems; ++i) {
+            insert(table, items.get(i));
+        }
+        mTable = table;
+    }
+
+    private static void insert(DisplayItem[] table, DisplayItem displayItem) {
+        final int mask = table.length - 1;
+        int i = hash(displayItem.mItemRef.mId) & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = displayItem;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
 }
@@ -1,14 +1,13 @@
 package com.cooliris.media;
 
-import java.util.HashMap;
-
 // CR: this stuff needs comments really badly.
 public final class DisplaySlot {
     private MediaSet mSetRef;
     private String mTitle;
-    private StringTexture mTitleImage;
+    private StringTextureAtlas.Entry mTitleImage;
     private String mLocation;
-    private StringTexture mLocationImage;
+    private StringTextureAtlas.Entry mLocationImage;
+    private boolean mLocationRequestVisible;
 
     private static final StringTexture.Config CAPTION_STYLE = new StringTexture.Config();
     private static final StringTexture.Config CLUSTER_STYLE = new StringTexture.Config();
@@ -44,9 +43,11 @@ public final class DisplaySlot {
         mTitle = null;
         mTitleImage = null;
         mLocationImage = null;
+        mLocationRequestVisible = false;
         if (set.mReverseGeocodedLocation == null) {
             set.mReverseGeocodedLocationRequestMade = false;
             set.mReverseGeocodedLocationComputed = false;
+            set.mReverseGeocodedLocationClaimed = false;
         }
     }
 
@@ -62,50 +63,42 @@ public final class DisplaySlot {
         }
     }
 
-    private StringTexture getTextureForString(String string, HashMap<String, StringTexture> textureTable,
-            StringTexture.Config config) {
-        StringTexture texture = null;
-        if (textureTable != null && textureTable.containsKey(string)) {
-            texture = textureTable.get(string);
-        }
-        if (texture == null) {
-            texture = new StringTexture(string, config);
-            if (textureTable != null) {
-                textureTable.put(string, texture);
-            }
-        }
-        return texture;
-    }
-
-    public StringTexture getTitleImage(HashMap<String, StringTexture> textureTable) {
+    public StringTextureAtlas.Entry getTitleImage(StringTextureAtlas atlas) {
         if (mSetRef == null) {
             return null;
         }
-        StringTexture texture = mTitleImage;
+        StringTextureAtlas.Entry entry = mTitleImage;
         String title = mSetRef.mTruncTitleString;
-        if (texture == null && title != null && !(title.equals(mTitle))) {
-            texture = getTextureForString(title, textureTable, ((mSetRef.mId != Shared.INVALID && mSetRef.mId != 0) ? CAPTION_STYLE
-                    : CLUSTER_STYLE));
-            mTitleImage = texture;
+        if ((entry == null || !entry.isValid()) && title != null) {
+            entry = atlas.get(title, ((mSetRef.mId != Shared.INVALID && mSetRef.mId != 0) ? CAPTION_STYLE : CLUSTER_STYLE));
+            mTitleImage = entry;
             mTitle = title;
         }
-        return texture;
+        return entry;
     }
 
-    public StringTexture getLocationImage(ReverseGeocoder reverseGeocoder, HashMap<String, StringTexture> textureTable) {
+    public StringTextureAtlas.Entry getLocationImage(ReverseGeocoder reverseGeocoder, StringTextureAtlas atlas,
+            boolean visible) {
         if (mSetRef == null || mSetRef.mTitleString == null) {
             return null;
         }
-        if (mLocationImage == null) {
-            if (!mSetRef.mReverseGeocodedLocationRequestMade && reverseGeocoder != null) {
-                reverseGeocoder.enqueue(mSetRef);
-                mSetRef.mReverseGeocodedLocationRequestMade = true;
+        if (mLocationImage == null || !mLocationImage.isValid()) {
+            if (reverseGeocoder != null) {
+                if (!mSetRef.mReverseGeocodedLocationRequestMade) {
+                    reverseGeocoder.enqueue(mSetRef, visible);
+                    mSetRef.mReverseGeocodedLocationRequestMade = true;
+                    mLocationRequestVisible = visible;
+                } else if (visible && !mLocationRequestVisible) {
+                    // The set scrolled into view, bump it to the front.
+                    reverseGeocoder.enqueue(mSetRef, true);
+                    mLocationRequestVisible = true;
+                }
             }
             if (mSetRef.mReverseGeocodedLocationComputed) {
                 String geocodedLocation = mSetRef.mReverseGeocodedLocation;
                 if (geocodedLocation != null) {
                     mLocation = geocodedLocation;
-                    mLocationImage = getTextureForString(mLocation, textureTable, LOCATION_STYLE);
+                    mLocationImage = atlas.get(mLocation, LOCATION_STYLE);
                 }
             }
         }
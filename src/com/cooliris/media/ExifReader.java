@@ -0,0 +1,377 @@
+package com.cooliris.media;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+
+/**
+ * Reads the few EXIF fields the gallery uses - date taken, orientation and
+ * the embedded thumbnail - straight out of the APP1 segment of a JPEG. Only
+ * the segment headers before APP1 and the APP1 segment itself are read, and
+ * only the IFD entries of interest are decoded, so the cost no longer grows
+ * with the number of tags in the file. Orientation can be
+ * rewritten in place without touching the rest of the file. A reader reuses
+ * its buffers between files and is not thread-safe; use the reader of the
+ * calling thread.
+ */
+public final class ExifReader {
+    public static final int ORIENTATION_UNDEFINED = 0;
+
+    private static final int MARKER_SOI = 0xFFD8;
+    private static final int MARKER_APP1 = 0xFFE1;
+    private static final int MARKER_SOS = 0xFFDA;
+    private static final int MARKER_EOI = 0xFFD9;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private static final int IFD_0 = 0;
+    private static final int IFD_1 = 1;
+    private static final int IFD_EXIF = 2;
+
+    // Offset of the TIFF header within the APP1 payload, after "Exif\0\0".
+    private static final int TIFF_START = 6;
+    private static final int INITIAL_SEGMENT_SIZE = 16 * 1024;
+    private static final int DATE_LENGTH = 19;
+
+    private static final ThreadLocal<ExifReader> sReaders = new ThreadLocal<ExifReader>() {
+        @Override
+        protected ExifReader initialValue() {
+            return new ExifReader();
+        }
+    };
+
+    private final ByteBuffer mMarker = ByteBuffer.allocate(4);
+    private ByteBuffer mSegmentBuffer = ByteBuffer.allocate(INITIAL_SEGMENT_SIZE);
+    private final Calendar mCalendar = Calendar.getInstance();
+
+    // The APP1 payload of the last file read, and its offset in that file.
+    private ByteBuffer mSegment;
+    private long mSegmentOffset;
+
+    private int mOrientation;
+    private int mOrientationPosition;
+    private long mDateTime;
+    private long mDateTimeOriginal;
+    private int mThumbnailPosition;
+    private int mThumbnailLength;
+
+    private ExifReader() {
+    }
+
+    /**
+     * Returns the reader of the calling thread.
+     */
+    public static ExifReader get() {
+        return sReaders.get();
+    }
+
+    /**
+     * Reads the EXIF header of the file. Returns false if the file is not a
+     * JPEG or carries no EXIF data, in which case all fields are unset.
+     */
+    public boolean read(String filePath) {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(filePath);
+            return read(stream.getChannel());
+        } catch (IOException e) {
+            reset();
+            return false;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the EXIF header through positional reads, leaving the position of
+     * the channel untouched.
+     */
+    public boolean read(FileChannel channel) throws IOException {
+        reset();
+        final ByteBuffer marker = mMarker;
+        marker.clear();
+        marker.limit(2);
+        if (!readFully(channel, marker, 0) || (marker.getShort(0) & 0xFFFF) != MARKER_SOI) {
+            return false;
+        }
+        long position = 2;
+        while (true) {
+            marker.clear();
+            if (!readFully(channel, marker, position)) {
+                return false;
+            }
+            final int markerType = marker.getShort(0) & 0xFFFF;
+            final int length = marker.getShort(2) & 0xFFFF;
+            if ((markerType & 0xFF00) != 0xFF00 || markerType == MARKER_SOS || markerType == MARKER_EOI || length < 2) {
+                return false;
+            }
+            if (markerType == MARKER_APP1) {
+                final int payloadLength = length - 2;
+                ByteBuffer segment = mSegmentBuffer;
+                if (segment.capacity() < payloadLength) {
+                    segment = ByteBuffer.allocate(payloadLength);
+                    mSegmentBuffer = segment;
+                }
+                segment.clear();
+                segment.limit(payloadLength);
+                if (!readFully(channel, segment, position + 4)) {
+                    return false;
+                }
+                segment.position(0);
+                // Other APP1 segments, such as XMP, may precede the EXIF one.
+                if (parseSegment(segment, position + 4)) {
+                    return true;
+                }
+            }
+            position += 2 + length;
+        }
+    }
+
+    /**
+     * @return the EXIF orientation, or ORIENTATION_UNDEFINED if absent.
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * @return the time the picture was taken in milliseconds, preferring
+     *         DateTimeOriginal over DateTime, or -1 if neither is valid.
+     */
+    public long getDateTaken() {
+        return (mDateTimeOriginal != -1L) ? mDateTimeOriginal : mDateTime;
+    }
+
+    public boolean hasThumbnail() {
+        return mThumbnailLength > 0;
+    }
+
+    /**
+     * @return a copy of the embedded JPEG thumbnail of the last file read, or
+     *         null if there is none.
+     */
+    public byte[] getThumbnail() {
+        if (!hasThumbnail()) {
+            return null;
+        }
+        final byte[] thumbnail = new byte[mThumbnailLength];
+        final ByteBuffer segment = mSegment.duplicate();
+        segment.position(mThumbnailPosition);
+        segment.get(thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Overwrites the orientation of the file in place. Returns false if the
+     * file has no orientation entry to patch, in which case the caller has to
+     * rewrite the header.
+     */
+    public boolean writeOrientation(String filePath, int exifOrientation) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filePath, "rw");
+            final FileChannel channel = file.getChannel();
+            if (!read(channel) || mOrientationPosition == 0) {
+                return false;
+            }
+            final ByteBuffer value = mMarker;
+            value.clear();
+            value.order(mSegment.order());
+            value.putShort(0, (short) exifOrientation);
+            value.limit(2);
+            final long position = mSegmentOffset + mOrientationPosition;
+            while (value.hasRemaining()) {
+                channel.write(value, position + value.position());
+            }
+            mOrientation = exifOrientation;
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            mMarker.order(ByteOrder.BIG_ENDIAN);
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
+    private void reset() {
+        mSegment = null;
+        mSegmentOffset = 0;
+        mOrientation = ORIENTATION_UNDEFINED;
+        mOrientationPosition = 0;
+        mDateTime = -1L;
+        mDateTimeOriginal = -1L;
+        mThumbnailPosition = 0;
+        mThumbnailLength = 0;
+    }
+
+    private boolean parseSegment(ByteBuffer segment, long segmentOffset) {
+        final int limit = segment.limit();
+        if (limit < TIFF_START + 8 || segment.get(0) != 'E' || segment.get(1) != 'x' || segment.get(2) != 'i'
+                || segment.get(3) != 'f' || segment.get(4) != 0 || segment.get(5) != 0) {
+            return false;
+        }
+        final byte byteOrder = segment.get(TIFF_START);
+        if (byteOrder == 'I' && segment.get(TIFF_START + 1) == 'I') {
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder == 'M' && segment.get(TIFF_START + 1) == 'M') {
+            segment.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return false;
+        }
+        if (segment.getShort(TIFF_START + 2) != 42) {
+            return false;
+        }
+        mSegment = segment;
+        mSegmentOffset = segmentOffset;
+        try {
+            final int nextIfd = readIfd(segment, segment.getInt(TIFF_START + 4), IFD_0);
+            if (nextIfd != 0) {
+                readIfd(segment, nextIfd, IFD_1);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // A truncated or corrupt header; keep whatever was read before.
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the entries of interest of the IFD at the given TIFF offset and
+     * any IFD it points to. Returns the TIFF offset of the next IFD, or 0.
+     */
+    private int readIfd(ByteBuffer segment, int tiffOffset, int ifd) {
+        final int limit = segment.limit();
+        final int start = TIFF_START + tiffOffset;
+        if (tiffOffset <= 0 || start + 2 > limit) {
+            return 0;
+        }
+        final int numEntries = segment.getShort(start) & 0xFFFF;
+        final int entriesStart = start + 2;
+        final int entriesEnd = entriesStart + numEntries * 12;
+        if (entriesEnd > limit) {
+            return 0;
+        }
+        int exifIfd = 0;
+        int thumbnailOffset = 0;
+        for (int entry = entriesStart; entry < entriesEnd; entry += 12) {
+            final int tag = segment.getShort(entry) & 0xFFFF;
+            final int type = segment.getShort(entry + 2) & 0xFFFF;
+            final int count = segment.getInt(entry + 4);
+            final int value = entry + 8;
+            switch (ifd) {
+            case IFD_0:
+                if (tag == TAG_ORIENTATION && type == TYPE_SHORT && count == 1) {
+                    mOrientation = segment.getShort(value) & 0xFFFF;
+                    mOrientationPosition = value;
+                } else if (tag == TAG_DATETIME) {
+                    mDateTime = readDate(segment, value, count);
+                } else if (tag == TAG_EXIF_IFD) {
+                    exifIfd = segment.getInt(value);
+                }
+                break;
+            case IFD_1:
+                if (tag == TAG_THUMBNAIL_OFFSET) {
+                    thumbnailOffset = readInt(segment, value, type);
+                } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                    mThumbnailLength = readInt(segment, value, type);
+                }
+                break;
+            case IFD_EXIF:
+                if (tag == TAG_DATETIME_ORIGINAL) {
+                    mDateTimeOriginal = readDate(segment, value, count);
+                }
+                break;
+            }
+        }
+        if (ifd == IFD_1) {
+            final int thumbnailStart = TIFF_START + thumbnailOffset;
+            if (thumbnailOffset <= 0 || mThumbnailLength <= 0 || thumbnailStart + mThumbnailLength > limit) {
+                mThumbnailLength = 0;
+            } else {
+                mThumbnailPosition = thumbnailStart;
+            }
+        }
+        if (exifIfd != 0) {
+            readIfd(segment, exifIfd, IFD_EXIF);
+        }
+        return (entriesEnd + 4 <= limit) ? segment.getInt(entriesEnd) : 0;
+    }
+
+    private static int readInt(ByteBuffer segment, int value, int type) {
+        return (type == TYPE_SHORT) ? segment.getShort(value) & 0xFFFF : (type == TYPE_LONG) ? segment.getInt(value) : 0;
+    }
+
+    /**
+     * Parses "yyyy:MM:dd HH:mm:ss", or the same with other separators such as
+     * "yyyy-MM-ddTHH:mm:ss", in the local time zone. Returns -1 if the value is
+     * missing or malformed.
+     */
+    private long readDate(ByteBuffer segment, int value, int count) {
+        if (count < DATE_LENGTH) {
+            return -1L;
+        }
+        final int start = TIFF_START + segment.getInt(value);
+        if (start < TIFF_START || start + DATE_LENGTH > segment.limit()) {
+            return -1L;
+        }
+        final int year = readDigits(segment, start, 4);
+        final int month = readDigits(segment, start + 5, 2);
+        final int day = readDigits(segment, start + 8, 2);
+        final int hour = readDigits(segment, start + 11, 2);
+        final int minute = readDigits(segment, start + 14, 2);
+        final int second = readDigits(segment, start + 17, 2);
+        if (year <= 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0
+                || minute > 59 || second < 0 || second > 60) {
+            return -1L;
+        }
+        final Calendar calendar = mCalendar;
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    private static int readDigits(ByteBuffer segment, int start, int numDigits) {
+        int value = 0;
+        for (int i = 0; i < numDigits; ++i) {
+            final int digit = segment.get(start + i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
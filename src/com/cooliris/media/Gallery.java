@@ -270,7 +270,9 @@ public final class Gallery extends Activity {
         }
         LocalDataSource.sThumbnailCache.flush();
         LocalDataSource.sThumbnailCacheVideo.flush();
+        LocalDataSource.sScreennailCache.flush();
         PicasaDataSource.sThumbnailCache.flush();
+        UriTexture.sUriCache.flush();
         CacheService.startCache(this, true);
     }
 
@@ -0,0 +1,66 @@
+package com.cooliris.media;
+
+/**
+ * Quantizes latitude and longitude onto a grid of roughly square cells of a
+ * given edge length in meters, so that nearby points share a cache key. Cell
+ * rows are fixed in latitude and the number of columns per row shrinks with
+ * the cosine of the row's latitude.
+ */
+public final class GeoCell {
+    // Tags cell keys so that they never collide with reserved or legacy keys.
+    private static final long KEY_TAG = 1L << 62;
+    private static final long INDEX_MASK = 0x7fffffffL;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1.0) * LocationMediaFilter.EARTH_RADIUS_METERS;
+
+    private GeoCell() {
+    }
+
+    public static long key(double latitude, double longitude, double cellSizeMeters) {
+        final int row = row(latitude, cellSizeMeters);
+        return key(row, column(row, longitude, cellSizeMeters));
+    }
+
+    /**
+     * Fills the keys of the eight cells surrounding the given point into
+     * neighbours, which must hold at least eight entries.
+     */
+    public static void neighbours(double latitude, double longitude, double cellSizeMeters, long[] neighbours) {
+        final int row = row(latitude, cellSizeMeters);
+        int count = 0;
+        for (int dRow = -1; dRow <= 1; ++dRow) {
+            // Rows past the poles simply never hold any data.
+            final int neighbourRow = row + dRow;
+            final int column = column(neighbourRow, longitude, cellSizeMeters);
+            final int numColumns = numColumns(neighbourRow, cellSizeMeters);
+            for (int dColumn = -1; dColumn <= 1; ++dColumn) {
+                if (dRow == 0 && dColumn == 0) {
+                    continue;
+                }
+                // Columns wrap around the antimeridian.
+                neighbours[count++] = key(neighbourRow, (column + dColumn + numColumns) % numColumns);
+            }
+        }
+    }
+
+    private static long key(int row, int column) {
+        return KEY_TAG | ((row & INDEX_MASK) << 31) | (column & INDEX_MASK);
+    }
+
+    private static int row(double latitude, double cellSizeMeters) {
+        final double cellDegrees = cellSizeMeters / METERS_PER_DEGREE;
+        return (int) Math.floor((latitude - LocationMediaFilter.LAT_MIN) / cellDegrees);
+    }
+
+    private static int numColumns(int row, double cellSizeMeters) {
+        final double cellDegrees = cellSizeMeters / METERS_PER_DEGREE;
+        final double rowLatitude = LocationMediaFilter.LAT_MIN + (row + 0.5) * cellDegrees;
+        final double circumference = 360.0 * METERS_PER_DEGREE * Math.cos(Math.toRadians(rowLatitude));
+        return Math.max(1, (int) Math.ceil(circumference / cellSizeMeters));
+    }
+
+    private static int column(int row, double longitude, double cellSizeMeters) {
+        final int numColumns = numColumns(row, cellSizeMeters);
+        final int column = (int) Math.floor((longitude - LocationMediaFilter.LON_MIN) / 360.0 * numColumns);
+        return Math.max(0, Math.min(numColumns - 1, column));
+    }
+}
@@ -2,15 +2,13 @@ package com.cooliris.media;
 
 public final class GridCameraManager {
     private final GridCamera mCamera;
-    private static final Pool<Vector3f> sPool;
-    static {
-        final Vector3f[] vectorPool = new Vector3f[128];
-        int length = vectorPool.length;
-        for (int i = 0; i < length; ++i) {
-            vectorPool[i] = new Vector3f();
+    // Used from both the UI and render threads.
+    private static final ConcurrentPool<Vector3f> sPool = new ConcurrentPool<Vector3f>(128) {
+        @Override
+        protected Vector3f newObject() {
+            return new Vector3f();
         }
-        sPool = new Pool<Vector3f>(vectorPool);
-    }
+    };
 
     public GridCameraManager(final GridCamera camera) {
         mCamera = camera;
@@ -19,7 +17,7 @@ public final class GridCameraManager {
     public void centerCameraForSlot(LayoutInterface layout, int slotIndex, float baseConvergence, Vector3f deltaAnchorPositionIn,
             int selectedSlotIndex, float zoomValue, float imageTheta, int state) {
         final GridCamera camera = mCamera;
-        final Pool<Vector3f> pool = sPool;
+        final Pool<Vector3f> pool = sPool.get();
         synchronized (camera) {
             final boolean zoomin = (selectedSlotIndex != Shared.INVALID);
             final int theta = (int) imageTheta;
@@ -66,7 +64,7 @@ public final class GridCameraManager {
     public boolean constrainCameraForSlot(LayoutInterface layout, int slotIndex, Vector3f deltaAnchorPositionIn,
             float currentFocusItemWidth, float currentFocusItemHeight) {
         final GridCamera camera = mCamera;
-        final Pool<Vector3f> pool = sPool;
+        final Pool<Vector3f> pool = sPool.get();
         boolean retVal = false;
         synchronized (camera) {
             final Vector3f position = pool.create();
@@ -124,7 +122,7 @@ public final class GridCameraManager {
     public void computeVisibleRange(MediaFeed feed, LayoutInterface layout, Vector3f deltaAnchorPositionIn,
             IndexRange outVisibleRange, IndexRange outBufferedVisibleRange, IndexRange outCompleteRange, int state) {
         GridCamera camera = mCamera;
-        Pool<Vector3f> pool = sPool;
+        Pool<Vector3f> pool = sPool.get();
         float offset = (camera.mLookAtX * camera.mScale);
         int itemWidth = camera.mItemWidth;
         float maxIncrement = camera.mWidth * 0.5f + itemWidth;
@@ -2,7 +2,6 @@ package com.cooliris.media;
 
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
 
 import javax.microedition.khronos.opengles.GL10;
 import javax.microedition.khronos.opengles.GL11;
@@ -40,6 +39,8 @@ public final class GridDrawManager {
     private float mCurrentFocusItemHeight;
     private boolean mCurrentFocusIsPressed;
     private final Texture mNoItemsTexture;
+    private final Vector3f mVisibleTopLeft = new Vector3f();
+    private final Vector3f mVisibleBottomRight = new Vector3f();
 
     private static final Comparator<DisplayItem> sDisplayItemComparator = new Comparator<DisplayItem>() {
         public int compare(DisplayItem a, DisplayItem b) {
@@ -254,7 +255,18 @@ public final class GridDrawManager {
                     }
                     DisplayItem displayItem = displayItems[indexInDrawnArray];
                     MediaItem item = displayItem.mItemRef;
-                    final Texture thumbnailTexture = displayItem.getThumbnailImage(view.getContext(), sThumbnailConfig);
+                    // Until the screennail image is loaded, show the cached
+                    // screen-sized rendition if there is one, else the
+                    // thumbnail.
+                    Texture thumbnailTexture = displayItem.getThumbnailImage(view.getContext(), sThumbnailConfig);
+                    final Texture cachedScreennailTexture = displayItem.getCachedScreennailImage();
+                    if (cachedScreennailTexture != null) {
+                        if (cachedScreennailTexture.isLoaded()) {
+                            thumbnailTexture = cachedScreennailTexture;
+                        } else {
+                            view.prime(cachedScreennailTexture, true);
+                        }
+                    }
                     Texture texture = displayItem.getScreennailImage(view.getContext());
                     if (isCameraZAnimating && (texture == null || !texture.isLoaded())) {
                         texture = thumbnailTexture;
@@ -361,6 +373,10 @@ public final class GridDrawManager {
                                 quad.unbindArrays(gl);
                             }
                         }
+                        if (i == 0 && !slideshowMode && zoomValue > 1.0f && hiRes != null && fsTexture == hiRes
+                                && selectedMixRatio == 1.0f && alpha == 1.0f) {
+                            drawFocusTiles(view, gl, displayItem, hiRes, quad);
+                        }
                         if (i == 0 || slideshowMode) {
                             mCurrentFocusItemWidth = quad.getWidth();
                             mCurrentFocusItemHeight = quad.getHeight();
@@ -466,7 +482,8 @@ public final class GridDrawManager {
                 GridDrawables.sTextGrid.bindArrays(gl);
                 final float textOffsetY = 0.82f;
                 gl.glTranslatef(0.0f, -textOffsetY, 0.0f);
-                HashMap<String, StringTexture> stringTextureTable = GridDrawables.sStringTextureTable;
+                StringTextureAtlas stringTextureAtlas = GridDrawables.sStringTextureAtlas;
+                stringTextureAtlas.beginFrame();
                 ReverseGeocoder reverseGeocoder = ((Gallery) view.getContext()).getReverseGeocoder();
 
                 boolean itemsPresent = false;
@@ -476,17 +493,18 @@ public final class GridDrawManager {
                     DisplayItem displayItem = displayItems[(i - firstBufferedVisibleSlot) * GridLayer.MAX_ITEMS_PER_SLOT];
                     if (displayItem != null) {
                         DisplaySlot displaySlot = displaySlots[i - firstBufferedVisibleSlot];
-                        Texture textureString = displaySlot.getTitleImage(stringTextureTable);
-                        view.loadTexture(textureString);
-                        if (textureString != null) {
+                        StringTextureAtlas.Entry textureString = displaySlot.getTitleImage(stringTextureAtlas);
+                        if (textureString != null && stringTextureAtlas.load(view, gl, textureString)) {
                             if (i < firstVisibleSlot || i > lastVisibleSlot) {
                                 continue;
                             }
-                            drawDisplayItem(view, gl, displayItem, textureString, PASS_TEXT_LABEL, null, 0);
+                            StringTextureAtlas.setTextureMatrix(gl, textureString);
+                            drawDisplayItem(view, gl, displayItem, textureString.getTexture(), PASS_TEXT_LABEL, null, 0);
                         }
 
                     }
                 }
+                StringTextureAtlas.resetTextureMatrix(gl);
 
                 if (!itemsPresent && !isFeedLoading) {
                     // Draw the no items texture.
@@ -507,13 +525,15 @@ public final class GridDrawManager {
                     DisplayItem displayItem = displayItems[(i - firstBufferedVisibleSlot) * GridLayer.MAX_ITEMS_PER_SLOT];
                     if (displayItem != null) {
                         DisplaySlot displaySlot = displaySlots[i - firstBufferedVisibleSlot];
-                        StringTexture textureString = displaySlot.getLocationImage(reverseGeocoder, stringTextureTable);
-                        if (textureString != null) {
-                            view.loadTexture(textureString);
-                            drawDisplayItem(view, gl, displayItem, textureString, PASS_TEXT_LABEL, null, 0);
+                        StringTextureAtlas.Entry textureString = displaySlot.getLocationImage(reverseGeocoder, stringTextureAtlas,
+                                i >= firstVisibleSlot && i <= lastVisibleSlot);
+                        if (textureString != null && stringTextureAtlas.load(view, gl, textureString)) {
+                            StringTextureAtlas.setTextureMatrix(gl, textureString);
+                            drawDisplayItem(view, gl, displayItem, textureString.getTexture(), PASS_TEXT_LABEL, null, 0);
                         }
                     }
                 }
+                StringTextureAtlas.resetTextureMatrix(gl);
                 if (state == GridLayer.STATE_TIMELINE) {
                     GridDrawables.sLocationGrid.bindArrays(gl);
                     Texture locationTexture = drawables.mTextureLocation;
@@ -524,7 +544,8 @@ public final class GridDrawManager {
                             if (displayItem.mAlive == true) {
                                 DisplaySlot displaySlot = displaySlots[i - firstBufferedVisibleSlot];
                                 if (displaySlot.hasValidLocation()) {
-                                    StringTexture textureString = displaySlot.getLocationImage(reverseGeocoder, stringTextureTable);
+                                    StringTextureAtlas.Entry textureString = displaySlot.getLocationImage(reverseGeocoder, stringTextureAtlas,
+                                            i >= firstVisibleSlot && i <= lastVisibleSlot);
                                     float textWidth = (textureString != null) ? textureString.computeTextWidth() : 0;
                                     textWidth *= (mCamera.mOneByScale * 0.5f);
                                     if (textWidth == 0.0f) {
@@ -596,6 +617,90 @@ public final class GridDrawManager {
         }
     }
 
+    /**
+     * Draws the tiles of the zoomed-in focus item that are on screen over its
+     * hi-res texture, once that texture is magnified beyond its resolution.
+     */
+    private void drawFocusTiles(RenderView view, GL11 gl, DisplayItem displayItem, Texture hiRes, GridQuad quad) {
+        final ImageTiles tiles = displayItem.getImageTiles();
+        if (tiles == null) {
+            return;
+        }
+        final GridCamera camera = mCamera;
+        final Vector3f topLeft = mVisibleTopLeft;
+        final Vector3f bottomRight = mVisibleBottomRight;
+        camera.convertToCameraSpace(0, 0, 0, topLeft);
+        camera.convertToCameraSpace(camera.mWidth, camera.mHeight, 0, bottomRight);
+        final float visibleWidth = Math.abs(bottomRight.x - topLeft.x);
+        final float quadWidth = quad.getWidth();
+        final float quadHeight = quad.getHeight();
+        if (visibleWidth == 0.0f || hiRes.getWidth() == 0) {
+            return;
+        }
+        final float magnification = quadWidth * camera.mWidth / (visibleWidth * hiRes.getWidth());
+        final int level = tiles.getLevelForMagnification(magnification);
+        if (level == 0) {
+            tiles.clear();
+            return;
+        }
+
+        // Map the corners of the screen into fractions of the image, undoing
+        // the rotation of the item and the mirroring of the GL space.
+        final float centerX = displayItem.mAnimatedPosition.x * camera.mOneByScale;
+        final float centerY = displayItem.mAnimatedPosition.y * camera.mOneByScale;
+        final float theta = displayItem.mAnimatedImageTheta + displayItem.mAnimatedTheta;
+        final float cos = (float) Math.cos(Math.toRadians(theta));
+        final float sin = (float) Math.sin(Math.toRadians(theta));
+        float minX = 1.0f;
+        float minY = 1.0f;
+        float maxX = 0.0f;
+        float maxY = 0.0f;
+        for (int corner = 0; corner < 4; ++corner) {
+            final float dx = (((corner & 1) == 0) ? topLeft.x : bottomRight.x) - centerX;
+            final float dy = (((corner & 2) == 0) ? topLeft.y : bottomRight.y) - centerY;
+            final float x = 0.5f + (cos * dx + sin * dy) / quadWidth;
+            final float y = 0.5f + (cos * dy - sin * dx) / quadHeight;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+        final int tilesPerSide = ImageTiles.getTilesPerSide(level);
+        final int minTx = Math.max(0, (int) (minX * tilesPerSide));
+        final int minTy = Math.max(0, (int) (minY * tilesPerSide));
+        final int maxTx = Math.min(tilesPerSide - 1, (int) (maxX * tilesPerSide));
+        final int maxTy = Math.min(tilesPerSide - 1, (int) (maxY * tilesPerSide));
+        if (minTx > maxTx || minTy > maxTy) {
+            return;
+        }
+
+        // Tiles replace the hi-res texture beneath them, which lies in the
+        // same plane.
+        final boolean depthTest = gl.glIsEnabled(GL11.GL_DEPTH_TEST);
+        gl.glDisable(GL11.GL_DEPTH_TEST);
+        gl.glBlendFunc(GL11.GL_ONE, GL11.GL_ZERO);
+        final float oneByTilesPerSide = 1.0f / tilesPerSide;
+        final GridQuad tileQuad = GridDrawables.sTileGrid;
+        for (int ty = minTy; ty <= maxTy; ++ty) {
+            for (int tx = minTx; tx <= maxTx; ++tx) {
+                final Texture tile = tiles.getTile(level, tx, ty, minTx, minTy, maxTx, maxTy);
+                if (!tile.isLoaded()) {
+                    view.bind(tile);
+                    continue;
+                }
+                tileQuad.setSubQuad(quadWidth, quadHeight, tx * oneByTilesPerSide, ty * oneByTilesPerSide, (tx + 1)
+                        * oneByTilesPerSide, (ty + 1) * oneByTilesPerSide, tile.getNormalizedWidth(), tile.getNormalizedHeight());
+                tileQuad.bindArrays(gl);
+                drawDisplayItem(view, gl, displayItem, tile, PASS_FOCUS_CONTENT, null, 0.0f);
+                tileQuad.unbindArrays(gl);
+            }
+        }
+        gl.glBlendFunc(GL11.GL_ONE, GL11.GL_ONE);
+        if (depthTest) {
+            gl.glEnable(GL11.GL_DEPTH_TEST);
+        }
+    }
+
     private void drawDisplayItem(RenderView view, GL11 gl, DisplayItem displayItem, Texture texture, int pass,
             Texture previousTexture, float mixRatio) {
         GridCamera camera = mCamera;
@@ -1,7 +1,5 @@
 package com.cooliris.media;
 
-import java.util.HashMap;
-
 import javax.microedition.khronos.opengles.GL11;
 
 public final class GridDrawables {
@@ -14,6 +12,7 @@ public final class GridDrawables {
     public static GridQuad sLocationGrid;
     public static GridQuad sSourceIconGrid;
     public static final GridQuad[] sFullscreenGrid = new GridQuad[3];
+    public static GridQuad sTileGrid;
 
     // All the resource Textures.
     private static final int TEXTURE_FRAME = R.drawable.stack_frame;
@@ -45,7 +44,7 @@ public final class GridDrawables {
     public Texture mTexturePlaceholder;
 
     // The textures generated from strings.
-    public static final HashMap<String, StringTexture> sStringTextureTable = new HashMap<String, StringTexture>(128);
+    public static StringTextureAtlas sStringTextureAtlas;
 
     static {
         // We first populate the spinner textures.
@@ -77,6 +76,8 @@ public final class GridDrawables {
             sFullscreenGrid[1].setDynamic(true);
             sFullscreenGrid[2] = GridQuad.createGridQuad(width, height, 0, 0, 1.0f, oneByAspect, false);
             sFullscreenGrid[2].setDynamic(true);
+            sTileGrid = GridQuad.createGridQuad(width, height, 0, 0, 1.0f, 1.0f, false);
+            sTileGrid.setDynamic(true);
 
             // We create supplementary quads for the checkmarks, video overlay
             // and location button
@@ -98,6 +99,7 @@ public final class GridDrawables {
             float textHeight = (textHeightPow2 / (float) itemHeight) * height;
             float textOffsetY = 0.0f;
             sTextGrid = GridQuad.createGridQuad(textWidth, textHeight, 0, textOffsetY, 1.0f, 1.0f, false);
+            sStringTextureAtlas = new StringTextureAtlas((int) seedTextWidth, (int) textHeightPow2);
 
             // We finally create the frame around every grid item
             sFrame = GridQuadFrame.createFrame(width, height, itemWidth, itemHeight);
@@ -116,6 +118,8 @@ public final class GridDrawables {
         sFullscreenGrid[0].generateHardwareBuffers(gl);
         sFullscreenGrid[1].generateHardwareBuffers(gl);
         sFullscreenGrid[2].generateHardwareBuffers(gl);
+        sTileGrid.freeHardwareBuffers(gl);
+        sTileGrid.generateHardwareBuffers(gl);
 
         // Supplementary quads.
         sSelectedGrid.freeHardwareBuffers(gl);
@@ -135,8 +139,8 @@ public final class GridDrawables {
         sFrame.freeHardwareBuffers(gl);
         sFrame.generateHardwareBuffers(gl);
 
-        // Clear the string table.
-        sStringTextureTable.clear();
+        // Clear the string atlas.
+        sStringTextureAtlas.clear();
 
         // Regenerate all the textures.
         mTextureFrame = view.getResource(TEXTURE_FRAME, false);
@@ -33,7 +33,7 @@ public final class GridInputProcessor implements GestureDetector.OnGestureListen
     private GridCamera mCamera;
     private GridLayer mLayer;
     private Context mContext;
-    private Pool<Vector3f> mPool;
+    private ConcurrentPool<Vector3f> mPool;
     private DisplayItem[] mDisplayItems;
     private boolean mPrevHitEdge;
     private boolean mTouchFeedbackDelivered;
@@ -41,7 +41,7 @@ public final class GridInputProcessor implements GestureDetector.OnGestureListen
     private ScaleGestureDetector mScaleGestureDetector;
     private boolean mZoomGesture;
 
-    public GridInputProcessor(Context context, GridCamera camera, GridLayer layer, RenderView view, Pool<Vector3f> pool,
+    public GridInputProcessor(Context context, GridCamera camera, GridLayer layer, RenderView view, ConcurrentPool<Vector3f> pool,
             DisplayItem[] displayItems) {
         mPool = pool;
         mCamera = camera;
@@ -280,7 +280,7 @@ public final class GridInputProcessor implements GestureDetector.OnGestureListen
             if (Math.abs(deltaX) >= 10.0f || Math.abs(deltaY) >= 10.0f) {
                 mTouchMoved = true;
             }
-            Pool<Vector3f> pool = mPool;
+            Pool<Vector3f> pool = mPool.get();
             Vector3f firstPosition = pool.create();
             Vector3f lastPosition = pool.create();
             Vector3f deltaAnchorPosition = pool.create();
@@ -427,7 +427,7 @@ public final class GridInputProcessor implements GestureDetector.OnGestureListen
     }
 
     private void constrainCamera(boolean b) {
-        Pool<Vector3f> pool = mPool;
+        Pool<Vector3f> pool = mPool.get();
         GridLayer layer = mLayer;
         Vector3f firstPosition = pool.create();
         Vector3f lastPosition = pool.create();
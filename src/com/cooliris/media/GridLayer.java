@@ -1,6 +1,7 @@
 package com.cooliris.media;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import javax.microedition.khronos.opengles.GL11;
 
 import android.hardware.SensorEvent;
@@ -37,22 +38,13 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
     private static final IndexRange sPreviousDataRange = new IndexRange();
     private static final IndexRange sCompleteRange = new IndexRange();
 
-    private static final Pool<Vector3f> sTempVec;
-    private static final Pool<Vector3f> sTempVecAlt;
-    static {
-        Vector3f[] vectorPool = new Vector3f[128];
-        int length = vectorPool.length;
-        for (int i = 0; i < length; ++i) {
-            vectorPool[i] = new Vector3f();
+    // Borrowed from both the UI and render threads.
+    private static final ConcurrentPool<Vector3f> sTempVec = new ConcurrentPool<Vector3f>(128) {
+        @Override
+        protected Vector3f newObject() {
+            return new Vector3f();
         }
-        Vector3f[] vectorPoolRenderThread = new Vector3f[128];
-        length = vectorPoolRenderThread.length;
-        for (int i = 0; i < length; ++i) {
-            vectorPoolRenderThread[i] = new Vector3f();
-        }
-        sTempVec = new Pool<Vector3f>(vectorPool);
-        sTempVecAlt = new Pool<Vector3f>(vectorPoolRenderThread);
-    }
+    };
 
     private static final ArrayList<MediaItem> sTempList = new ArrayList<MediaItem>();
     private static final MediaItem[] sTempHash = new MediaItem[64];
@@ -84,6 +76,10 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
     private static final DisplayList sDisplayList = new DisplayList();
     private static final DisplayItem[] sDisplayItems = new DisplayItem[MAX_ITEMS_DRAWABLE];
     private static final DisplaySlot[] sDisplaySlots = new DisplaySlot[MAX_DISPLAY_SLOTS];
+    private static final DisplaySlot[] sTempDisplaySlots = new DisplaySlot[MAX_DISPLAY_SLOTS];
+    // The anchor and state the slots of sPreviousDataRange were computed for.
+    private static final Vector3f sPreviousDataAnchorPosition = new Vector3f();
+    private int mPreviousDataState;
     private static ArrayList<MediaItem> sVisibleItems;
 
     private float mTimeElapsedSinceTransition;
@@ -428,7 +424,7 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
             firstSlotIndex = rangeToUse.begin;
             lastSlotIndex = rangeToUse.end;
         }
-        Pool<Vector3f> pool = sTempVec;
+        Pool<Vector3f> pool = sTempVec.get();
         float itemWidthBy2 = itemWidth * 0.5f;
         float itemHeightBy2 = itemHeight * 0.5f;
         Vector3f position = pool.create();
@@ -565,6 +561,30 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
                 sBufferedVisibleRange, sCompleteRange, mState);
     }
 
+    /**
+     * Moves the display slots and items of numSlots slots from one place of the
+     * buffered range to another, after the range began numShifted slots later.
+     */
+    private static void shiftDisplaySlots(int numShifted, int fromIndex, int toIndex, int numSlots) {
+        final DisplaySlot[] displaySlots = sDisplaySlots;
+        final DisplaySlot[] tempSlots = sTempDisplaySlots;
+        final int numDisplaySlots = displaySlots.length;
+        System.arraycopy(displaySlots, 0, tempSlots, 0, numDisplaySlots);
+        // Rotate the slots rather than copying them so that every DisplaySlot
+        // stays in the array once.
+        int shift = numShifted % numDisplaySlots;
+        if (shift < 0) {
+            shift += numDisplaySlots;
+        }
+        for (int i = 0; i < numDisplaySlots; ++i) {
+            displaySlots[i] = tempSlots[(i + shift) % numDisplaySlots];
+            tempSlots[(i + shift) % numDisplaySlots] = null;
+        }
+        final DisplayItem[] displayItems = sDisplayItems;
+        final int numItems = numSlots * MAX_ITEMS_PER_SLOT;
+        System.arraycopy(displayItems, fromIndex * MAX_ITEMS_PER_SLOT, displayItems, toIndex * MAX_ITEMS_PER_SLOT, numItems);
+    }
+
     private void computeVisibleItems() {
         if (mFeedAboutToChange == true || mPerformingLayoutChange == true) {
             return;
@@ -579,10 +599,12 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
             // all.
             int firstVisibleSlotIndex = sBufferedVisibleRange.begin;
             int lastVisibleSlotIndex = sBufferedVisibleRange.end;
+            int previousFirstSlotIndex = sPreviousDataRange.begin;
+            int previousLastSlotIndex = sPreviousDataRange.end;
             sPreviousDataRange.begin = firstVisibleSlotIndex;
             sPreviousDataRange.end = lastVisibleSlotIndex;
 
-            Pool<Vector3f> pool = sTempVec;
+            Pool<Vector3f> pool = sTempVec.get();
             Vector3f position = pool.create();
             Vector3f deltaAnchorPosition = pool.create();
             try {
@@ -596,12 +618,37 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
                 deltaAnchorPosition.set(sDeltaAnchorPosition);
                 LayoutInterface layout = mLayoutInterface;
                 GridCamera camera = mCamera;
+                // Slots that were computed for the previous range, with the
+                // same anchor and outside of a transition, are only moved to
+                // their new place; the slots scrolled in are computed.
+                int keptFirstSlotIndex = Math.max(firstVisibleSlotIndex, previousFirstSlotIndex);
+                int keptLastSlotIndex = Math.min(lastVisibleSlotIndex, previousLastSlotIndex);
+                keptLastSlotIndex = Math.min(keptLastSlotIndex, Math.min(firstVisibleSlotIndex, previousFirstSlotIndex)
+                        + numDisplaySlots - 1);
+                if (previousFirstSlotIndex == Shared.INVALID || mFeedChanged || mTimeElapsedSinceTransition <= 1.0f
+                        || mState != mPreviousDataState || !deltaAnchorPosition.equals(sPreviousDataAnchorPosition)) {
+                    keptFirstSlotIndex = 0;
+                    keptLastSlotIndex = -1;
+                } else if (keptFirstSlotIndex <= keptLastSlotIndex) {
+                    shiftDisplaySlots(firstVisibleSlotIndex - previousFirstSlotIndex, keptFirstSlotIndex
+                            - previousFirstSlotIndex, keptFirstSlotIndex - firstVisibleSlotIndex, keptLastSlotIndex
+                            - keptFirstSlotIndex + 1);
+                }
+                sPreviousDataAnchorPosition.set(deltaAnchorPosition);
+                mPreviousDataState = mState;
                 for (int i = firstVisibleSlotIndex; i <= lastVisibleSlotIndex; ++i) {
+                    if (i >= keptFirstSlotIndex && i <= keptLastSlotIndex) {
+                        continue;
+                    }
                     GridCameraManager.getSlotPositionForSlotIndex(i, camera, layout, deltaAnchorPosition, position);
                     MediaSet set = feed.getSetForSlot(i);
                     int indexIntoSlots = i - firstVisibleSlotIndex;
 
-                    if (set != null && indexIntoSlots >= 0 && indexIntoSlots < numDisplaySlots) {
+                    if (set == null && indexIntoSlots >= 0 && indexIntoSlots < numDisplaySlots) {
+                        // Do not leave the items moved out of this place.
+                        Arrays.fill(displayItems, indexIntoSlots * MAX_ITEMS_PER_SLOT, Math.min(numDisplayItems,
+                                (indexIntoSlots + 1) * MAX_ITEMS_PER_SLOT), null);
+                    } else if (set != null && indexIntoSlots >= 0 && indexIntoSlots < numDisplaySlots) {
                         ArrayList<MediaItem> items = set.getItems();
                         displaySlots[indexIntoSlots].setMediaSet(set);
                         ArrayList<MediaItem> bestItems = sTempList;
@@ -716,7 +763,7 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
     @Override
     public void handleLowMemory() {
         clearUnusedThumbnails();
-        GridDrawables.sStringTextureTable.clear();
+        GridDrawables.sStringTextureAtlas.clear();
         mBackground.clearCache();
     }
 
@@ -730,7 +777,7 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
         sDisplayList.clear();
         mHud.clear();
         mHud.reset();
-        GridDrawables.sStringTextureTable.clear();
+        GridDrawables.sStringTextureAtlas.clear();
         mDrawables.onSurfaceCreated(view, gl);
         mBackground.clear();
     }
@@ -818,7 +865,7 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
         }
         int itemHeight = camera.mItemHeight;
         int itemWidth = camera.mItemWidth;
-        Pool<Vector3f> pool = sTempVec;
+        Pool<Vector3f> pool = sTempVec.get();
         Vector3f deltaAnchorPosition = pool.create();
         Vector3f currentSlotPosition = pool.create();
         try {
@@ -991,7 +1038,7 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
     }
 
     public DisplayItem getDisplayItemForScrollPosition(float posX) {
-        Pool<Vector3f> pool = sTempVecAlt;
+        Pool<Vector3f> pool = sTempVec.get();
         MediaFeed feed = mMediaFeed;
         int itemWidth = mCamera.mItemWidth;
         int itemHeight = mCamera.mItemHeight;
@@ -1162,7 +1209,7 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
     }
 
     private int getSlotForScreenPosition(int posX, int posY, int itemWidth, int itemHeight) {
-        Pool<Vector3f> pool = sTempVec;
+        Pool<Vector3f> pool = sTempVec.get();
         int retVal = 0;
         Vector3f worldPos = pool.create();
         try {
@@ -1271,7 +1318,7 @@ public final class GridLayer extends RootLayer implements MediaFeed.Listener, Ti
     }
 
     private float getFillScreenZoomValue() {
-        return GridCameraManager.getFillScreenZoomValue(mCamera, sTempVec, mCurrentFocusItemWidth, mCurrentFocusItemHeight);
+        return GridCameraManager.getFillScreenZoomValue(mCamera, sTempVec.get(), mCurrentFocusItemWidth, mCurrentFocusItemHeight);
     }
 
     public void zoomInToSelectedItem() {
@@ -207,6 +207,24 @@ final class GridQuad {
         recomputeQuad();
     }
 
+    /**
+     * Lays the quad over the part of a width x height quad that shows the
+     * given fractions of its image, for drawing a tile of that image.
+     */
+    public void setSubQuad(float width, float height, float left, float top, float right, float bottom, float u, float v) {
+        final float widthBy2 = width * 0.5f;
+        final float heightBy2 = height * 0.5f;
+        final float leftX = widthBy2 - left * width;
+        final float rightX = widthBy2 - right * width;
+        final float topY = heightBy2 - top * height;
+        final float bottomY = heightBy2 - bottom * height;
+        set(0, 0, rightX, bottomY, 0.0f, u, v, false, 0);
+        set(1, 0, leftX, bottomY, 0.0f, 0.0f, v, false, 0);
+        set(0, 1, rightX, topY, 0.0f, u, 0.0f, false, 0);
+        set(1, 1, leftX, topY, 0.0f, 0.0f, 0.0f, false, 0);
+        mQuadChanged = true;
+    }
+
     public void set(int i, int j, float x, float y, float z, float u, float v) {
         set(i, j, x, y, z, u, v, true, 0);
     }
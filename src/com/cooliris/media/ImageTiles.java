@@ -0,0 +1,282 @@
+package com.cooliris.media;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * A pyramid of tiles over a local image, used to draw the zoomed-in parts of
+ * the focus item at a higher resolution than its MAX_RESOLUTION texture. Level
+ * 0 is that texture; level L doubles its resolution L times and splits the
+ * image into 2^(L+1) tiles per side, so that only the tiles on screen are
+ * uploaded. Tiles are cut from a single decode of the image per level and
+ * kept in a DiskCache, so revisiting an image decodes a few small JPEGs
+ * instead of the original. The cache is emptied once it outgrows
+ * MAX_CACHE_BYTES, since DiskCache cannot reclaim single entries. The platform
+ * offers no region decoder, so the resolution of a level is bounded by the
+ * pixels one decode may hold.
+ */
+public final class ImageTiles {
+    private static final String TAG = "ImageTiles";
+    public static final int MAX_LEVEL = 2;
+    // Largest decode, in pixels, a level may be cut from.
+    private static final int MAX_LEVEL_PIXELS = 2048 * 1536;
+    private static final int TILE_JPEG_QUALITY = 85;
+    private static final int INFO_TILE = -1;
+    // Size the tile cache may grow to before it is emptied.
+    private static final long MAX_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private static final DiskCache sTileCache = new DiskCache("hires-tiles");
+
+    private final String mUri;
+    private final long mCacheId;
+    private final long mTimestamp;
+    // Image size and the sample size of the level 0 texture, once known.
+    private int mWidth;
+    private int mHeight;
+    private int mBaseSampleSize;
+    private volatile int mMaxLevel = MAX_LEVEL;
+    // Tiles of the level being drawn, by ty * tilesPerSide + tx.
+    private int mLevel;
+    private Tile[] mTiles;
+
+    public ImageTiles(String uri, long cacheId, long timestamp) {
+        mUri = uri;
+        mCacheId = cacheId;
+        mTimestamp = timestamp;
+    }
+
+    public static int getTilesPerSide(int level) {
+        return 2 << level;
+    }
+
+    /**
+     * Returns the level whose resolution covers the given magnification of
+     * the level 0 texture, or 0 if that texture is sharp enough.
+     */
+    public int getLevelForMagnification(float magnification) {
+        final int maxLevel = mMaxLevel;
+        int level = 0;
+        while (magnification > 1.0f && level < maxLevel) {
+            magnification *= 0.5f;
+            ++level;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the tile of the given level, dropping the tiles of other levels
+     * and those outside the given range so that their textures are released.
+     */
+    public Texture getTile(int level, int tx, int ty, int minTx, int minTy, int maxTx, int maxTy) {
+        final int tilesPerSide = getTilesPerSide(level);
+        Tile[] tiles = mTiles;
+        if (tiles == null || mLevel != level) {
+            tiles = new Tile[tilesPerSide * tilesPerSide];
+            mTiles = tiles;
+            mLevel = level;
+        } else {
+            for (int i = 0; i < tiles.length; ++i) {
+                final Tile tile = tiles[i];
+                if (tile != null && (tile.mTx < minTx || tile.mTx > maxTx || tile.mTy < minTy || tile.mTy > maxTy)) {
+                    tiles[i] = null;
+                }
+            }
+        }
+        final int index = ty * tilesPerSide + tx;
+        Tile tile = tiles[index];
+        if (tile == null) {
+            tile = new Tile(this, level, tx, ty);
+            tiles[index] = tile;
+        }
+        return tile;
+    }
+
+    public void clear() {
+        mTiles = null;
+    }
+
+    private long getKey(int level, int tx, int ty) {
+        return ((mCacheId * 31 + level) * 31 + tx) * 31 + ty;
+    }
+
+    /**
+     * Loads a tile from the cache, building its whole level first if needed.
+     * Tiles of one image are loaded one at a time so that a level is decoded
+     * only once.
+     */
+    private synchronized Bitmap loadTile(Context context, int level, int tx, int ty) throws IOException {
+        if (!readInfo(context) || level > mMaxLevel) {
+            return null;
+        }
+        final byte[] data;
+        synchronized (sTileCache) {
+            data = sTileCache.get(getKey(level, tx, ty), mTimestamp);
+        }
+        if (data != null) {
+            final BitmapFactory.Options options = createOptions();
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        return buildLevel(context, level, tx, ty);
+    }
+
+    private boolean readInfo(Context context) throws IOException {
+        if (mWidth != 0) {
+            return true;
+        }
+        final long infoKey = getKey(0, INFO_TILE, INFO_TILE);
+        final byte[] info;
+        synchronized (sTileCache) {
+            info = sTileCache.get(infoKey, mTimestamp);
+        }
+        if (info != null && info.length == 8) {
+            mWidth = ((info[0] & 0xFF) << 24) | ((info[1] & 0xFF) << 16) | ((info[2] & 0xFF) << 8) | (info[3] & 0xFF);
+            mHeight = ((info[4] & 0xFF) << 24) | ((info[5] & 0xFF) << 16) | ((info[6] & 0xFF) << 8) | (info[7] & 0xFF);
+        } else {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            final InputStream input = context.getContentResolver().openInputStream(Uri.parse(mUri));
+            try {
+                BitmapFactory.decodeStream(input, null, options);
+            } finally {
+                input.close();
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                mMaxLevel = 0;
+                return false;
+            }
+            mWidth = options.outWidth;
+            mHeight = options.outHeight;
+            final int width = mWidth;
+            final int height = mHeight;
+            synchronized (sTileCache) {
+                sTileCache.put(infoKey, new byte[] { (byte) (width >>> 24), (byte) (width >>> 16), (byte) (width >>> 8),
+                        (byte) width, (byte) (height >>> 24), (byte) (height >>> 16), (byte) (height >>> 8), (byte) height },
+                        mTimestamp);
+            }
+        }
+        // Matches the sample size UriTexture decodes the level 0 texture at.
+        final float maxResolution = UriTexture.MAX_RESOLUTION;
+        final int ratio = Math.max((int) Math.ceil(mWidth / maxResolution), (int) Math.ceil(mHeight / maxResolution));
+        mBaseSampleSize = Shared.nextPowerOf2(ratio);
+        int maxLevel = 0;
+        while (maxLevel < MAX_LEVEL && getSampleSize(maxLevel + 1) < getSampleSize(maxLevel)) {
+            ++maxLevel;
+        }
+        mMaxLevel = maxLevel;
+        return true;
+    }
+
+    /**
+     * The sample size of a level: half that of the level below it, bounded by
+     * the full resolution and by MAX_LEVEL_PIXELS.
+     */
+    private int getSampleSize(int level) {
+        int sampleSize = Math.max(1, mBaseSampleSize >> level);
+        while ((long) (mWidth / sampleSize) * (mHeight / sampleSize) > MAX_LEVEL_PIXELS) {
+            sampleSize <<= 1;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap buildLevel(Context context, int level, int requestedTx, int requestedTy) throws IOException {
+        synchronized (sTileCache) {
+            if (sTileCache.getSize() > MAX_CACHE_BYTES) {
+                Log.i(TAG, "Emptying the tile cache");
+                sTileCache.deleteAll();
+            }
+        }
+        final BitmapFactory.Options options = createOptions();
+        options.inSampleSize = getSampleSize(level);
+        Bitmap image = null;
+        final InputStream input = context.getContentResolver().openInputStream(Uri.parse(mUri));
+        try {
+            image = BitmapFactory.decodeStream(input, null, options);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Not enough memory to decode level " + level + " of " + mUri);
+            mMaxLevel = level - 1;
+            return null;
+        } finally {
+            input.close();
+        }
+        if (image == null) {
+            return null;
+        }
+        final int imageWidth = image.getWidth();
+        final int imageHeight = image.getHeight();
+        final int tilesPerSide = getTilesPerSide(level);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(65536);
+        Bitmap requestedTile = null;
+        try {
+            for (int ty = 0; ty < tilesPerSide; ++ty) {
+                final int top = ty * imageHeight / tilesPerSide;
+                final int bottom = (ty + 1) * imageHeight / tilesPerSide;
+                for (int tx = 0; tx < tilesPerSide; ++tx) {
+                    final int left = tx * imageWidth / tilesPerSide;
+                    final int right = (tx + 1) * imageWidth / tilesPerSide;
+                    if (right <= left || bottom <= top) {
+                        continue;
+                    }
+                    final Bitmap tile = Bitmap.createBitmap(image, left, top, right - left, bottom - top);
+                    output.reset();
+                    tile.compress(Bitmap.CompressFormat.JPEG, TILE_JPEG_QUALITY, output);
+                    synchronized (sTileCache) {
+                        sTileCache.put(getKey(level, tx, ty), output.toByteArray(), mTimestamp);
+                    }
+                    if (tx == requestedTx && ty == requestedTy) {
+                        requestedTile = tile;
+                    } else {
+                        tile.recycle();
+                    }
+                }
+            }
+        } finally {
+            image.recycle();
+            synchronized (sTileCache) {
+                sTileCache.flush();
+            }
+        }
+        return requestedTile;
+    }
+
+    private static BitmapFactory.Options createOptions() {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inDither = false;
+        return options;
+    }
+
+    private static final class Tile extends Texture {
+        private final ImageTiles mImageTiles;
+        private final int mLevel;
+        private final int mTx;
+        private final int mTy;
+
+        public Tile(ImageTiles imageTiles, int level, int tx, int ty) {
+            mImageTiles = imageTiles;
+            mLevel = level;
+            mTx = tx;
+            mTy = ty;
+        }
+
+        @Override
+        protected Bitmap load(RenderView view) {
+            try {
+                return mImageTiles.loadTile(view.getContext(), mLevel, mTx, mTy);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to load tile of " + mImageTiles.mUri);
+                return null;
+            }
+        }
+    }
+}
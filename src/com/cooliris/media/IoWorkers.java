@@ -0,0 +1,63 @@
+package com.cooliris.media;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A few threads shared by the jobs that touch many files one small read or
+ * write at a time, such as EXIF scans and updates, which finish sooner with
+ * more than one request in flight. The threads are created once rather than
+ * per job.
+ */
+public final class IoWorkers {
+    public interface Task {
+        public abstract void run(int index);
+    }
+
+    private static final int NUM_THREADS = 2;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "IoWorker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private IoWorkers() {
+    }
+
+    /**
+     * Runs the task for every index from 0 to count - 1 on the worker threads
+     * and returns once all have run. Must not be called from a task.
+     */
+    public static void runAll(final int count, final Task task) throws InterruptedException {
+        final int numWorkers = Math.min(NUM_THREADS, count);
+        if (numWorkers == 0) {
+            return;
+        }
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(numWorkers);
+        final Runnable worker = new Runnable() {
+            public void run() {
+                try {
+                    int i;
+                    while ((i = nextIndex.getAndIncrement()) < count) {
+                        task.run(i);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = 0; i < numWorkers; ++i) {
+            sExecutor.execute(worker);
+        }
+        done.await();
+    }
+}
@@ -3,6 +3,7 @@ package com.cooliris.media;
 import java.io.File;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
@@ -22,9 +23,13 @@ import com.cooliris.cache.CacheService;
 
 public final class LocalDataSource implements DataSource {
     private static final String TAG = "LocalDataSource";
+    // Ids per statement when deleting or updating items in bulk.
+    private static final int MAX_IDS_PER_STATEMENT = 100;
 
     public static final DiskCache sThumbnailCache = new DiskCache("local-image-thumbs");
     public static final DiskCache sThumbnailCacheVideo = new DiskCache("local-video-thumbs");
+    // Screen-sized JPEGs of local images, keyed like the thumbnails.
+    public static final DiskCache sScreennailCache = new DiskCache("local-image-screennails");
 
     public static final String CAMERA_STRING = "Camera";
     public static final String DOWNLOAD_STRING = "download";
@@ -154,96 +159,266 @@ public final class LocalDataSource implements DataSource {
         }
     }
 
-    public boolean performOperation(final int operation, final ArrayList<MediaBucket> mediaBuckets, final Object data) {
+    public boolean performOperation(final int operation, final ArrayList<MediaBucket> mediaBuckets, final Object data,
+            final BulkOperation bulkOperation) {
         int numBuckets = mediaBuckets.size();
         ContentResolver cr = mContext.getContentResolver();
         switch (operation) {
         case MediaFeed.OPERATION_DELETE:
-            for (int i = 0; i < numBuckets; ++i) {
+            for (int i = 0; i < numBuckets && !bulkOperation.isCanceled(); ++i) {
                 MediaBucket bucket = mediaBuckets.get(i);
                 MediaSet set = bucket.mediaSet;
                 ArrayList<MediaItem> items = bucket.mediaItems;
                 if (set != null && items == null) {
                     // Remove the entire bucket.
-                    final Uri uriImages = Images.Media.EXTERNAL_CONTENT_URI;
-                    final Uri uriVideos = Video.Media.EXTERNAL_CONTENT_URI;
-                    final String whereImages = Images.ImageColumns.BUCKET_ID + "=" + Long.toString(set.mId);
-                    final String whereVideos = Video.VideoColumns.BUCKET_ID + "=" + Long.toString(set.mId);
-                    cr.delete(uriImages, whereImages, null);
-                    cr.delete(uriVideos, whereVideos, null);
+                    deleteSet(cr, set);
+                    bulkOperation.onItemsDone(Math.max(1, set.getNumExpectedItems()));
                 }
                 if (set != null && items != null) {
                     // We need to remove these items from the set.
-                    int numItems = items.size();
-                    try {
-                        for (int j = 0; j < numItems; ++j) {
-                            MediaItem item = items.get(j);
-                            cr.delete(Uri.parse(item.mContentUri), null, null);
-                        }
-                    } catch (Exception e) {
-                        // If the database operation failed for any reason.
-                        ;
-                    }
+                    deleteItems(cr, items, bulkOperation);
                     set.updateNumExpectedItems();
                     set.generateTitle(true);
                 }
             }
             break;
         case MediaFeed.OPERATION_ROTATE:
+            float angleToRotate = ((Float) data).floatValue();
+            if (angleToRotate == 0) {
+                return true;
+            }
+            ArrayList<MediaItem> itemsToRotate = new ArrayList<MediaItem>();
             for (int i = 0; i < numBuckets; ++i) {
-                MediaBucket bucket = mediaBuckets.get(i);
-                ArrayList<MediaItem> items = bucket.mediaItems;
-                if (items == null) {
-                    continue;
-                }
-                float angleToRotate = ((Float) data).floatValue();
-                if (angleToRotate == 0) {
-                    return true;
-                }
-                int numItems = items.size();
-                for (int j = 0; j < numItems; ++j) {
-                    rotateItem(items.get(j), angleToRotate);
+                ArrayList<MediaItem> items = mediaBuckets.get(i).mediaItems;
+                if (items != null) {
+                    itemsToRotate.addAll(items);
                 }
             }
+            rotateItems(itemsToRotate, angleToRotate, bulkOperation);
             break;
         }
         return true;
     }
 
-    private void rotateItem(final MediaItem item, float angleToRotate) {
-        ContentResolver cr = mContext.getContentResolver();
+    static void deleteSet(final ContentResolver cr, final MediaSet set) {
+        final Uri uriImages = Images.Media.EXTERNAL_CONTENT_URI;
+        final Uri uriVideos = Video.Media.EXTERNAL_CONTENT_URI;
+        final String whereImages = Images.ImageColumns.BUCKET_ID + "=" + Long.toString(set.mId);
+        final String whereVideos = Video.VideoColumns.BUCKET_ID + "=" + Long.toString(set.mId);
+        cr.delete(uriImages, whereImages, null);
+        cr.delete(uriVideos, whereVideos, null);
+    }
+
+    /**
+     * Deletes the given items with one statement per batch of ids instead of
+     * one per item.
+     */
+    static void deleteItems(final ContentResolver cr, final ArrayList<MediaItem> items, final BulkOperation bulkOperation) {
+        final HashMap<String, ItemBatch> batches = new HashMap<String, ItemBatch>();
+        final int numItems = items.size();
+        for (int i = 0; i < numItems && !bulkOperation.isCanceled(); ++i) {
+            final MediaItem item = items.get(i);
+            final ItemBatch batch = ItemBatch.get(batches, item, null);
+            if (batch == null) {
+                // Not addressable by id, delete it on its own.
+                try {
+                    cr.delete(Uri.parse(item.mContentUri), null, null);
+                } catch (Exception e) {
+                    // If the database operation failed for any reason.
+                    ;
+                }
+                bulkOperation.onItemsDone(1);
+            } else if (batch.items.size() == MAX_IDS_PER_STATEMENT) {
+                batch.delete(cr);
+                bulkOperation.onItemsDone(batch.items.size());
+                batch.items.clear();
+            }
+        }
+        for (ItemBatch batch : batches.values()) {
+            if (bulkOperation.isCanceled()) {
+                break;
+            }
+            if (!batch.items.isEmpty()) {
+                batch.delete(cr);
+                bulkOperation.onItemsDone(batch.items.size());
+            }
+        }
+    }
+
+    private void rotateItems(final ArrayList<MediaItem> items, final float angleToRotate, final BulkOperation bulkOperation) {
+        final ContentResolver cr = mContext.getContentResolver();
+        final HashMap<String, ItemBatch> batches = new HashMap<String, ItemBatch>();
+        final ArrayList<MediaItem> fileItems = new ArrayList<MediaItem>();
+        final int numItems = items.size();
+        for (int i = 0; i < numItems && !bulkOperation.isCanceled(); ++i) {
+            final MediaItem item = items.get(i);
+            final float rotation = Shared.normalizePositive(item.mRotation + angleToRotate);
+            final String uriScheme = Uri.parse(item.mContentUri).getScheme();
+            if ("file".equals(uriScheme)) {
+                // Only the file carries the orientation, in its EXIF header.
+                fileItems.add(item);
+                continue;
+            }
+            final ItemBatch batch = ItemBatch.get(batches, item, Integer.toString((int) rotation));
+            if (batch == null) {
+                // Not addressable by id, update it on its own.
+                final String rotationString = Integer.toString((int) rotation);
+                final ContentValues values = new ContentValues();
+                values.put(Images.ImageColumns.ORIENTATION, rotationString);
+                try {
+                    cr.update(Uri.parse(item.mContentUri), values, null, null);
+                } catch (Exception e) {
+                    // If the database operation fails for any reason.
+                    ;
+                }
+                item.mRotation = rotation;
+                bulkOperation.onItemsDone(1);
+            } else if (batch.items.size() == MAX_IDS_PER_STATEMENT) {
+                batch.updateOrientation(cr);
+                bulkOperation.onItemsDone(batch.items.size());
+                batch.items.clear();
+            }
+        }
+        for (ItemBatch batch : batches.values()) {
+            if (bulkOperation.isCanceled()) {
+                break;
+            }
+            if (!batch.items.isEmpty()) {
+                batch.updateOrientation(cr);
+                bulkOperation.onItemsDone(batch.items.size());
+            }
+        }
+        writeExifOrientations(fileItems, angleToRotate, bulkOperation);
+
+        // Invalidate the cache entries once per set rather than once per item.
+        final LongHashMap<MediaSet> dirtySets = new LongHashMap<MediaSet>();
+        for (int i = 0; i < numItems; ++i) {
+            final MediaSet parentSet = items.get(i).mParentMediaSet;
+            if (parentSet != null && dirtySets.get(parentSet.mId) == null) {
+                dirtySets.put(parentSet.mId, parentSet);
+                CacheService.markDirty(mContext, parentSet.mId);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the EXIF orientation of the given file items on the shared
+     * IoWorkers threads.
+     */
+    static void writeExifOrientations(final ArrayList<MediaItem> items, final float angleToRotate,
+            final BulkOperation bulkOperation) {
         try {
-            int currentOrientation = (int) item.mRotation;
-            angleToRotate += currentOrientation;
-            float rotation = Shared.normalizePositive(angleToRotate);
-            String rotationString = Integer.toString((int) rotation);
+            IoWorkers.runAll(items.size(), new IoWorkers.Task() {
+                public void run(int index) {
+                    if (bulkOperation.isCanceled()) {
+                        return;
+                    }
+                    final MediaItem item = items.get(index);
+                    final float rotation = Shared.normalizePositive(item.mRotation + angleToRotate);
+                    try {
+                        final String path = Uri.parse(item.mContentUri).getPath();
+                        final int orientation = Shared.degreesToExifOrientation(rotation);
+                        // Patch the orientation in place and only rewrite the
+                        // header when the file has no orientation entry yet.
+                        if (!ExifReader.get().writeOrientation(path, orientation)) {
+                            ExifInterface exif = new ExifInterface(path);
+                            exif.setAttribute(ExifInterface.TAG_ORIENTATION, Integer.toString(orientation));
+                            exif.saveAttributes();
+                        }
+
+                        // Update the object representation of the item.
+                        item.mRotation = rotation;
+                    } catch (Exception e) {
+                        // Apparently not a JPEG.
+                    }
+                    bulkOperation.onItemsDone(1);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Items of one MediaStore collection that are deleted or updated with a
+     * single statement.
+     */
+    private static final class ItemBatch {
+        public final Uri collectionUri;
+        public final String value;
+        public final ArrayList<MediaItem> items = new ArrayList<MediaItem>(MAX_IDS_PER_STATEMENT);
+
+        private ItemBatch(Uri collectionUri, String value) {
+            this.collectionUri = collectionUri;
+            this.value = value;
+        }
 
-            // Update the database entry.
+        /**
+         * Adds the item to the batch for its collection and the given value,
+         * or returns null if its content uri does not end in an id.
+         */
+        public static ItemBatch get(HashMap<String, ItemBatch> batches, MediaItem item, String value) {
+            final String contentUri = item.mContentUri;
+            final int separator = (contentUri == null) ? -1 : contentUri.lastIndexOf('/');
+            if (separator <= 0 || !contentUri.startsWith("content:")) {
+                return null;
+            }
+            try {
+                Long.parseLong(contentUri.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            final String collection = contentUri.substring(0, separator);
+            final String key = (value == null) ? collection : collection + " " + value;
+            ItemBatch batch = batches.get(key);
+            if (batch == null) {
+                batch = new ItemBatch(Uri.parse(collection), value);
+                batches.put(key, batch);
+            }
+            batch.items.add(item);
+            return batch;
+        }
+
+        public void delete(ContentResolver cr) {
+            try {
+                cr.delete(collectionUri, getWhereClause(), null);
+            } catch (Exception e) {
+                // If the database operation failed for any reason.
+                Log.e(TAG, "Unable to delete " + items.size() + " items from " + collectionUri);
+            }
+        }
+
+        public void updateOrientation(ContentResolver cr) {
+            final float rotation = Integer.parseInt(value);
             ContentValues values = new ContentValues();
-            values.put(Images.ImageColumns.ORIENTATION, rotationString);
+            values.put(Images.ImageColumns.ORIENTATION, value);
             try {
-                cr.update(Uri.parse(item.mContentUri), values, null, null);
+                cr.update(collectionUri, values, getWhereClause(), null);
             } catch (Exception e) {
                 // If the database operation fails for any reason.
-                ;
+                Log.e(TAG, "Unable to rotate " + items.size() + " items in " + collectionUri);
             }
-
-            // Update the file EXIF information.
-            Uri uri = Uri.parse(item.mContentUri);
-            String uriScheme = uri.getScheme();
-            if (uriScheme.equals("file")) {
-                ExifInterface exif = new ExifInterface(uri.getPath());
-                exif.setAttribute(ExifInterface.TAG_ORIENTATION, Integer.toString(Shared.degreesToExifOrientation(rotation)));
-                exif.saveAttributes();
+            // Update the object representation of the items.
+            final ArrayList<MediaItem> items = this.items;
+            final int numItems = items.size();
+            for (int i = 0; i < numItems; ++i) {
+                items.get(i).mRotation = rotation;
             }
+        }
 
-            // Invalidate the cache entry.
-            CacheService.markDirty(mContext, item.mParentMediaSet.mId);
-
-            // Update the object representation of the item.
-            item.mRotation = rotation;
-        } catch (Exception e) {
-            // System.out.println("Apparently not a JPEG");
+        private String getWhereClause() {
+            final ArrayList<MediaItem> items = this.items;
+            final int numItems = items.size();
+            final StringBuilder where = new StringBuilder(16 + numItems * 8);
+            where.append(Images.ImageColumns._ID).append(" IN (");
+            for (int i = 0; i < numItems; ++i) {
+                if (i > 0) {
+                    where.append(',');
+                }
+                final String contentUri = items.get(i).mContentUri;
+                where.append(contentUri, contentUri.lastIndexOf('/') + 1, contentUri.length());
+            }
+            return where.append(')').toString();
         }
     }
 
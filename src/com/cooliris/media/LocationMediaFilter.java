@@ -1,9 +1,18 @@
 package com.cooliris.media;
 
+import java.util.ArrayList;
+
 public class LocationMediaFilter extends MediaFilter {
     private double mRadius;
     private double mCenterLat;
     private double mCenterLon;
+    // Bounding box around the filter circle, used to reject items before
+    // computing the exact distance.
+    private double mMinLat;
+    private double mMaxLat;
+    private double mMinLon;
+    private double mMaxLon;
+    private boolean mCheckLon;
     public static final int EARTH_RADIUS_METERS = 6378137;
     public static final int LAT_MIN = -90;
     public static final int LAT_MAX = 90;
@@ -14,12 +23,35 @@ public class LocationMediaFilter extends MediaFilter {
         mCenterLat = centerLatitude;
         mCenterLon = centerLongitude;
         mRadius = thresholdRadius;
+        computeBounds();
     }
 
     LocationMediaFilter(double latitude1, double longitude1, double latitude2, double longitude2) {
         mCenterLat = centerLat(latitude1, latitude2);
         mCenterLon = centerLon(longitude1, longitude2);
         mRadius = distanceBetween(latitude1, longitude1, latitude2, longitude2);
+        computeBounds();
+    }
+
+    private void computeBounds() {
+        // Pad the box slightly so that rounding never rejects an item on the
+        // circle itself.
+        final double deltaLat = Math.toDegrees(mRadius / EARTH_RADIUS_METERS) * 1.01 + 1e-6;
+        mMinLat = mCenterLat - deltaLat;
+        mMaxLat = mCenterLat + deltaLat;
+        final double cosLat = Math.cos(Math.toRadians(Math.min(LAT_MAX, Math.abs(mCenterLat) + deltaLat)));
+        final double deltaLon = (cosLat > 0) ? deltaLat / cosLat : Double.MAX_VALUE;
+        mMinLon = mCenterLon - deltaLon;
+        mMaxLon = mCenterLon + deltaLon;
+        // Skip the longitude test near the poles or across the antimeridian.
+        mCheckLon = (mMaxLat < LAT_MAX && mMinLat > LAT_MIN && mMinLon >= LON_MIN && mMaxLon <= LON_MAX);
+    }
+
+    private boolean inBounds(double latitude, double longitude) {
+        if (latitude < mMinLat || latitude > mMaxLat) {
+            return false;
+        }
+        return !mCheckLon || (longitude >= mMinLon && longitude <= mMaxLon);
     }
 
     public static final double centerLat(double lat1, double lat2) {
@@ -62,10 +94,27 @@ public class LocationMediaFilter extends MediaFilter {
 
     @Override
     public boolean pass(MediaItem item) {
+        if (!inBounds(item.mLatitude, item.mLongitude)) {
+            return false;
+        }
         double radius = distanceBetween(mCenterLat, mCenterLon, item.mLatitude, item.mLongitude);
         if (radius <= mRadius) {
             return true;
         }
         return false;
     }
+
+    @Override
+    public void apply(MediaSet source, MediaSet destination) {
+        // Only the items in the latitude band of the bounding box are
+        // candidates.
+        ArrayList<MediaItem> items = source.getItems();
+        int[] candidates = source.getIndex().queryLatitudeRange(mMinLat, mMaxLat);
+        for (int i = 0; i < candidates.length; ++i) {
+            MediaItem item = items.get(candidates[i]);
+            if (pass(item)) {
+                destination.addItem(item);
+            }
+        }
+    }
 }
@@ -0,0 +1,156 @@
+package com.cooliris.media;
+
+import java.util.Arrays;
+
+/**
+ * Maps longs to Objects with open addressing and linear probing. Unlike
+ * LongSparseArray, insertion of keys in arbitrary order is amortized O(1),
+ * which matters for indexes over thousands of album and item ids. Not
+ * thread-safe.
+ */
+public final class LongHashMap<E> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long key) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = keys.length - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            final Object value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return (E) value;
+            }
+        }
+    }
+
+    /**
+     * Maps the key to the given non-null value, replacing any previous mapping.
+     */
+    public void put(long key, E value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value must not be null");
+        }
+        long[] keys = mKeys;
+        Object[] values = mValues;
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            if (values[i] == null) {
+                break;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        // Keep the load factor at or below one half.
+        if ((mSize + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+            keys = mKeys;
+            values = mValues;
+            mask = keys.length - 1;
+        }
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        ++mSize;
+    }
+
+    public void remove(long key) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (true) {
+            if (values[i] == null) {
+                return;
+            }
+            if (keys[i] == key) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        // Shift later entries of the probe sequence back so that no tombstones
+        // are needed.
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            final int home = hash(keys[j]) & mask;
+            final boolean movable = (hole <= j) ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        --mSize;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        if (mSize != 0) {
+            Arrays.fill(mValues, null);
+            mSize = 0;
+        }
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = mKeys;
+        final Object[] oldValues = mValues;
+        allocate(capacity);
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; ++j) {
+            final Object value = oldValues[j];
+            if (value != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = value;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(long key) {
+        // Mix the high bits in, since ids and CRCs often differ only there.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
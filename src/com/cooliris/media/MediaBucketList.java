@@ -14,6 +14,13 @@ public final class MediaBucketList {
     private boolean mDirtyAcceleratedLookup;
     private int mCount;
     private HashMap<MediaItem, Boolean> mCachedItems = new HashMap<MediaItem, Boolean>(1024);
+    // The first bucket of mBuckets for each media set id, kept in step with
+    // mBuckets. Ids are not unique across data sources, so findBucket checks
+    // the set and scans on a mismatch.
+    private final LongHashMap<MediaBucket> mBucketIndex = new LongHashMap<MediaBucket>();
+    // Selected items of all buckets by item id, rebuilt lazily with
+    // mCachedItems.
+    private final LongHashMap<MediaItem> mSelectedItemIndex = new LongHashMap<MediaItem>(1024);
 
     // If only albums are selected, a bucket contains mediaSets.
     // If items are selected, a bucket contains mediaSets and mediaItems.
@@ -93,7 +100,6 @@ public final class MediaBucketList {
 	}
         setDirty();
         final ArrayList<MediaBucket> selectedBuckets = mBuckets;
-        final int numSelectedBuckets = selectedBuckets.size();
         MediaSet mediaSetToAdd = null;
         ArrayList<MediaItem> selectedItems = null;
         MediaBucket bucket = null;
@@ -118,21 +124,19 @@ public final class MediaBucketList {
         }
 
         // Search for the bucket for this media set
-        for (int i = 0; i < numSelectedBuckets; ++i) {
-            final MediaBucket bucketCompare = selectedBuckets.get(i);
-            if (bucketCompare.mediaSet == mediaSetToAdd) {
-                // We found the MediaSet.
-                if (!hasExpandedMediaSet) {
-                    // Remove this bucket from the list since this bucket was
-                    // already selected.
-                    if (removeIfAlreadyAdded) {
-                        selectedBuckets.remove(bucketCompare);
-                    }
-                    return;
-                } else {
-                    bucket = bucketCompare;
-                    break;
+        final MediaBucket bucketCompare = findBucket(mediaSetToAdd);
+        if (bucketCompare != null) {
+            // We found the MediaSet.
+            if (!hasExpandedMediaSet) {
+                // Remove this bucket from the list since this bucket was
+                // already selected.
+                if (removeIfAlreadyAdded) {
+                    selectedBuckets.remove(bucketCompare);
+                    unindexBucket(bucketCompare);
                 }
+                return;
+            } else {
+                bucket = bucketCompare;
             }
         }
         if (bucket == null) {
@@ -141,6 +145,9 @@ public final class MediaBucketList {
             bucket.mediaSet = mediaSetToAdd;
             bucket.mediaItems = selectedItems;
             selectedBuckets.add(bucket);
+            if (mediaSetToAdd != null && mBucketIndex.get(mediaSetToAdd.mId) == null) {
+                mBucketIndex.put(mediaSetToAdd.mId, bucket);
+            }
         }
         if (hasExpandedMediaSet) {
             int numSlots = feed.getNumSlots();
@@ -154,26 +161,7 @@ public final class MediaBucketList {
                         selectedItems = new ArrayList<MediaItem>(numItems);
                         bucket.mediaItems = selectedItems;
                     }
-                    for (int i = 0; i < numItems; ++i) {
-                        MediaItem item = items.get(i);
-                        // We see if this item has already been added.
-                        int numPresentItems = selectedItems.size();
-                        boolean foundIndex = false;
-                        for (int j = 0; j < numPresentItems; ++j) {
-                            if (selectedItems.get(j) == item) {
-                                // This index was already present, we need to
-                                // remove it.
-                                foundIndex = true;
-                                if (removeIfAlreadyAdded) {
-                                    selectedItems.remove(j);
-                                }
-                                break;
-                            }
-                        }
-                        if (foundIndex == false) {
-                            selectedItems.add(item);
-                        }
-                    }
+                    toggleItems(selectedItems, items, numItems, removeIfAlreadyAdded);
                 }
             }
         }
@@ -184,34 +172,23 @@ public final class MediaBucketList {
         HashMap<MediaItem, Boolean> cachedItems = mCachedItems;
         if (mDirtyAcceleratedLookup) {
             cachedItems.clear();
+            rebuildSelectedItemIndex();
             mDirtyAcceleratedLookup = false;
         }
         Boolean itemAdded = cachedItems.get(item);
         if (itemAdded == null) {
-            ArrayList<MediaBucket> selectedBuckets = mBuckets;
-            int numSelectedBuckets = selectedBuckets.size();
-            for (int i = 0; i < numSelectedBuckets; ++i) {
-                MediaBucket bucket = selectedBuckets.get(i);
-                ArrayList<MediaItem> mediaItems = bucket.mediaItems;
-                if (mediaItems == null) {
-                    MediaSet parentMediaSet = item.mParentMediaSet;
-                    if (parentMediaSet != null && parentMediaSet.equals(bucket.mediaSet)) {
-                        cachedItems.put(item, TRUE);
-                        return true;
-                    }
-                } else {
-                    int numMediaItems = mediaItems.size();
-                    for (int j = 0; j < numMediaItems; ++j) {
-                        MediaItem itemCompare = mediaItems.get(j);
-                        if (itemCompare == item) {
-                            cachedItems.put(item, TRUE);
-                            return true;
-                        }
-                    }
-                }
+            boolean found = false;
+            MediaSet parentMediaSet = item.mParentMediaSet;
+            if (parentMediaSet != null) {
+                MediaBucket bucket = findBucket(parentMediaSet);
+                found = (bucket != null && bucket.mediaItems == null);
+            }
+            if (!found) {
+                MediaItem itemCompare = mSelectedItemIndex.get(item.mId);
+                found = (itemCompare == item) || (itemCompare != null && findItemInBuckets(item));
             }
-            cachedItems.put(item, FALSE);
-            return false;
+            cachedItems.put(item, found ? TRUE : FALSE);
+            return found;
         } else {
             return itemAdded.booleanValue();
         }
@@ -219,6 +196,7 @@ public final class MediaBucketList {
 
     public void clear() {
         mBuckets.clear();
+        mBucketIndex.clear();
         setDirty();
     }
 
@@ -227,6 +205,116 @@ public final class MediaBucketList {
         mDirtyAcceleratedLookup = true;
     }
 
+    private MediaBucket findBucket(MediaSet mediaSet) {
+        if (mediaSet == null) {
+            return null;
+        }
+        final MediaBucket bucket = mBucketIndex.get(mediaSet.mId);
+        if (bucket == null || bucket.mediaSet == mediaSet) {
+            return bucket;
+        }
+        // A different set with the same id, for instance one that has since
+        // been replaced in the feed.
+        final ArrayList<MediaBucket> buckets = mBuckets;
+        final int numBuckets = buckets.size();
+        for (int i = 0; i < numBuckets; ++i) {
+            final MediaBucket bucketCompare = buckets.get(i);
+            if (bucketCompare.mediaSet == mediaSet) {
+                return bucketCompare;
+            }
+        }
+        return null;
+    }
+
+    private void unindexBucket(MediaBucket bucket) {
+        final long setId = bucket.mediaSet.mId;
+        if (mBucketIndex.get(setId) != bucket) {
+            return;
+        }
+        mBucketIndex.remove(setId);
+        // Index the next bucket whose set shares the id, if any.
+        final ArrayList<MediaBucket> buckets = mBuckets;
+        final int numBuckets = buckets.size();
+        for (int i = 0; i < numBuckets; ++i) {
+            final MediaBucket bucketCompare = buckets.get(i);
+            if (bucketCompare.mediaSet != null && bucketCompare.mediaSet.mId == setId) {
+                mBucketIndex.put(setId, bucketCompare);
+                break;
+            }
+        }
+    }
+
+    private void rebuildSelectedItemIndex() {
+        final LongHashMap<MediaItem> itemIndex = mSelectedItemIndex;
+        itemIndex.clear();
+        final ArrayList<MediaBucket> buckets = mBuckets;
+        final int numBuckets = buckets.size();
+        for (int i = 0; i < numBuckets; ++i) {
+            final ArrayList<MediaItem> mediaItems = buckets.get(i).mediaItems;
+            if (mediaItems != null) {
+                final int numMediaItems = mediaItems.size();
+                for (int j = 0; j < numMediaItems; ++j) {
+                    final MediaItem item = mediaItems.get(j);
+                    itemIndex.put(item.mId, item);
+                }
+            }
+        }
+    }
+
+    private boolean findItemInBuckets(MediaItem item) {
+        // Only reached when two selected items share an id.
+        final ArrayList<MediaBucket> buckets = mBuckets;
+        final int numBuckets = buckets.size();
+        for (int i = 0; i < numBuckets; ++i) {
+            final ArrayList<MediaItem> mediaItems = buckets.get(i).mediaItems;
+            if (mediaItems != null && mediaItems.contains(item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Adds the items that are not yet selected and, if requested, removes the
+    // ones that already are, in a single pass over each list.
+    private static void toggleItems(ArrayList<MediaItem> selectedItems, ArrayList<MediaItem> items, int numItems,
+            boolean removeIfAlreadyAdded) {
+        final int numPresentItems = selectedItems.size();
+        final LongHashMap<MediaItem> presentItems = new LongHashMap<MediaItem>(numPresentItems);
+        for (int j = 0; j < numPresentItems; ++j) {
+            final MediaItem item = selectedItems.get(j);
+            presentItems.put(item.mId, item);
+        }
+        LongHashMap<MediaItem> itemsToRemove = null;
+        for (int i = 0; i < numItems; ++i) {
+            final MediaItem item = items.get(i);
+            final MediaItem presentItem = presentItems.get(item.mId);
+            final boolean foundIndex = (presentItem == item)
+                    || (presentItem != null && selectedItems.indexOf(item) != Shared.INVALID);
+            if (!foundIndex) {
+                selectedItems.add(item);
+            } else if (removeIfAlreadyAdded) {
+                if (itemsToRemove == null) {
+                    itemsToRemove = new LongHashMap<MediaItem>();
+                }
+                itemsToRemove.put(item.mId, item);
+            }
+        }
+        if (itemsToRemove != null) {
+            // Compact the list, keeping the order of the remaining items.
+            int numKept = 0;
+            final int numSelectedItems = selectedItems.size();
+            for (int j = 0; j < numSelectedItems; ++j) {
+                final MediaItem item = selectedItems.get(j);
+                if (itemsToRemove.get(item.mId) != item) {
+                    selectedItems.set(numKept++, item);
+                }
+            }
+            for (int j = numSelectedItems - 1; j >= numKept; --j) {
+                selectedItems.remove(j);
+            }
+        }
+    }
+
     // Assumption: No item and set selection combinations.
     protected static boolean isSetSelection(ArrayList<MediaBucket> buckets) {
         if (buckets != null) {
@@ -2,24 +2,45 @@ package com.cooliris.media;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.view.Gravity;
 import android.widget.Toast;
 import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.cooliris.media.MediaClustering.Cluster;
 
 public final class MediaFeed implements Runnable {
+    private static final String TAG = "MediaFeed";
     public static final int OPERATION_DELETE = 0;
     public static final int OPERATION_ROTATE = 1;
     public static final int OPERATION_CROP = 2;
 
     private static final int NUM_ITEMS_LOOKAHEAD = 60;
+    // Operations touching fewer items finish too quickly to report progress.
+    private static final int MIN_ITEMS_FOR_PROGRESS = 20;
+    private static final long PROGRESS_INTERVAL = 2000; // ms.
+
+    // Runs the operations of all feeds one at a time, on a thread that is
+    // created on demand and exits when idle.
+    private static final ThreadPoolExecutor sOperationExecutor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Operation");
+                }
+            });
 
     private IndexRange mVisibleRange = new IndexRange();
     private IndexRange mBufferedRange = new IndexRange();
     private ArrayList<MediaSet> mMediaSets = new ArrayList<MediaSet>();
+    // Maps set ids to the sets in mMediaSets, guarded by its own lock.
+    private final LongHashMap<MediaSet> mMediaSetIndex = new LongHashMap<MediaSet>();
     private Listener mListener;
     private DataSource mDataSource;
     private boolean mListenerNeedsUpdate = false;
@@ -37,6 +58,8 @@ public final class MediaFeed implements Runnable {
     private boolean mWaitingForMediaScanner;
     private boolean mSingleImageMode;
     private boolean mLoading;
+    private final ArrayList<BulkOperation> mOperations = new ArrayList<BulkOperation>();
+    private long mLastProgressTime;
 
     public interface Listener {
         public abstract void onFeedAboutToChange(MediaFeed feed);
@@ -53,6 +76,7 @@ public final class MediaFeed implements Runnable {
     }
 
     public void shutdown() {
+        cancelOperations();
         if (mDataSourceThread != null) {
             mDataSource.shutdown();
             mDataSourceThread.interrupt();
@@ -70,6 +94,9 @@ public final class MediaFeed implements Runnable {
         synchronized (mMediaSets) {
             mMediaSets.clear();
         }
+        synchronized (mMediaSetIndex) {
+            mMediaSetIndex.clear();
+        }
         int numClusters = mClusterSets.size();
         for (int i = 0; i < numClusters; ++i) {
             MediaClustering mc = mClusterSets.get(i);
@@ -121,18 +148,62 @@ public final class MediaFeed implements Runnable {
 
     public MediaSet getMediaSet(final long setId) {
         if (setId != Shared.INVALID) {
-            try {
-                int mMediaSetsSize = mMediaSets.size();
-                for (int i = 0; i < mMediaSetsSize; i++) {
-                    if (mMediaSets.get(i).mId == setId) {
-                        return mMediaSets.get(i);
+            synchronized (mMediaSetIndex) {
+                return mMediaSetIndex.get(setId);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Changes the id of a set that is already part of this feed.
+     */
+    public void setMediaSetId(MediaSet set, long setId) {
+        synchronized (mMediaSets) {
+            synchronized (mMediaSetIndex) {
+                unindexMediaSet(set);
+                set.mId = setId;
+                indexMediaSet(set);
+            }
+        }
+    }
+
+    // Ids are not unique across data sources. Like a scan of mMediaSets, the
+    // index returns the earliest set with an id, so a set only takes over an
+    // id whose set has left the feed. The locks are taken in the same order
+    // as by the feed thread.
+    private void indexMediaSet(MediaSet set) {
+        synchronized (mMediaSets) {
+            synchronized (mMediaSetIndex) {
+                final MediaSet indexedSet = mMediaSetIndex.get(set.mId);
+                if (indexedSet == null || indexedSet == set || !mMediaSets.contains(indexedSet)) {
+                    mMediaSetIndex.put(set.mId, set);
+                }
+            }
+        }
+    }
+
+    private void unindexMediaSet(MediaSet set) {
+        synchronized (mMediaSets) {
+            synchronized (mMediaSetIndex) {
+                final long setId = set.mId;
+                // Another set may have replaced this one under the same id.
+                if (mMediaSetIndex.get(setId) != set) {
+                    return;
+                }
+                mMediaSetIndex.remove(setId);
+                // Index the next set of the feed that shares the id, if any.
+                final ArrayList<MediaSet> mediaSets = mMediaSets;
+                final int numSets = mediaSets.size();
+                for (int i = 0; i < numSets; ++i) {
+                    final MediaSet setCompare = mediaSets.get(i);
+                    if (setCompare != set && setCompare.mId == setId) {
+                        mMediaSetIndex.put(setId, setCompare);
+                        break;
                     }
                 }
-            } catch (Exception e) {
-                return null;
             }
         }
-        return null;
     }
 
     public MediaSet getFilteredSet() {
@@ -143,6 +214,7 @@ public final class MediaFeed implements Runnable {
         MediaSet mediaSet = new MediaSet(dataSource);
         mediaSet.mId = setId;
         mMediaSets.add(mediaSet);
+        indexMediaSet(mediaSet);
         if (mDataSourceThread != null && !mDataSourceThread.isAlive()) {
             mDataSourceThread.start();
         }
@@ -199,53 +271,114 @@ public final class MediaFeed implements Runnable {
         if (operation == OPERATION_DELETE && mListener != null) {
             mListener.onFeedAboutToChange(this);
         }
-        Thread operationThread = new Thread(new Runnable() {
+        final BulkOperation bulkOperation = new BulkOperation(operation, BulkOperation.countItems(copyMediaBuckets),
+                mOperationListener);
+        synchronized (mOperations) {
+            mOperations.add(bulkOperation);
+        }
+        sOperationExecutor.execute(new Runnable() {
             public void run() {
-                ArrayList<MediaBucket> mediaBuckets = copyMediaBuckets;
-                if (operation == OPERATION_DELETE) {
-                    int numBuckets = mediaBuckets.size();
-                    for (int i = 0; i < numBuckets; ++i) {
-                        MediaBucket bucket = mediaBuckets.get(i);
-                        MediaSet set = bucket.mediaSet;
-                        ArrayList<MediaItem> items = bucket.mediaItems;
-                        if (set != null && items == null) {
-                            // Remove the entire bucket.
-                            removeMediaSet(set);
-                        } else if (set != null && items != null) {
-                            // We need to remove these items from the set.
-                            int numItems = items.size();
-                            // We also need to delete the items from the
-                            // cluster.
-                            MediaClustering clustering = mClusterSets.get(set);
-                            for (int j = 0; j < numItems; ++j) {
-                                MediaItem item = items.get(j);
-                                removeItemFromMediaSet(item, set);
-                                if (clustering != null) {
-                                    clustering.removeItemFromClustering(item);
-                                }
-                            }
-                            set.updateNumExpectedItems();
-                            set.generateTitle(true);
-                        }
+                try {
+                    performOperation(bulkOperation, copyMediaBuckets, data);
+                } catch (Exception e) {
+                    Log.e(TAG, "Operation " + operation + " failed", e);
+                } finally {
+                    synchronized (mOperations) {
+                        mOperations.remove(bulkOperation);
                     }
-                    updateListener(true);
-                    mMediaFeedNeedsToRun = true;
-                    if (mDataSource != null) {
-                        mDataSource.performOperation(OPERATION_DELETE, mediaBuckets, null);
-                    }
-                } else {
-                    mDataSource.performOperation(operation, mediaBuckets, data);
                 }
             }
         });
-        operationThread.setName("Operation " + operation);
-        operationThread.start();
     }
 
+    /**
+     * Cancels the pending and running operations of this feed. Items that have
+     * already been processed stay processed. A delete that has started is left
+     * to finish, since its items are already gone from the feed.
+     */
+    public void cancelOperations() {
+        synchronized (mOperations) {
+            final ArrayList<BulkOperation> operations = mOperations;
+            final int numOperations = operations.size();
+            for (int i = 0; i < numOperations; ++i) {
+                final BulkOperation operation = operations.get(i);
+                if (operation.getOperation() == OPERATION_DELETE) {
+                    operation.cancelIfNotStarted();
+                } else {
+                    operation.cancel();
+                }
+            }
+        }
+    }
+
+    private void performOperation(BulkOperation bulkOperation, ArrayList<MediaBucket> mediaBuckets, Object data) {
+        if (!bulkOperation.start()) {
+            return;
+        }
+        final int operation = bulkOperation.getOperation();
+        final DataSource dataSource = mDataSource;
+        if (dataSource == null) {
+            return;
+        }
+        if (operation == OPERATION_DELETE) {
+            int numBuckets = mediaBuckets.size();
+            for (int i = 0; i < numBuckets; ++i) {
+                MediaBucket bucket = mediaBuckets.get(i);
+                MediaSet set = bucket.mediaSet;
+                ArrayList<MediaItem> items = bucket.mediaItems;
+                if (set != null && items == null) {
+                    // Remove the entire bucket.
+                    removeMediaSet(set);
+                } else if (set != null && items != null) {
+                    // We need to remove these items from the set.
+                    int numItems = items.size();
+                    // We also need to delete the items from the
+                    // cluster.
+                    MediaClustering clustering = mClusterSets.get(set);
+                    for (int j = 0; j < numItems; ++j) {
+                        MediaItem item = items.get(j);
+                        removeItemFromMediaSet(item, set);
+                        if (clustering != null) {
+                            clustering.removeItemFromClustering(item);
+                        }
+                    }
+                    set.updateNumExpectedItems();
+                    set.generateTitle(true);
+                }
+            }
+            updateListener(true);
+            mMediaFeedNeedsToRun = true;
+            dataSource.performOperation(OPERATION_DELETE, mediaBuckets, null, bulkOperation);
+        } else {
+            dataSource.performOperation(operation, mediaBuckets, data, bulkOperation);
+        }
+    }
+
+    private final BulkOperation.Listener mOperationListener = new BulkOperation.Listener() {
+        public void onOperationProgress(BulkOperation operation) {
+            final int numItems = operation.getNumItems();
+            final int numItemsDone = operation.getNumItemsDone();
+            if (numItems < MIN_ITEMS_FOR_PROGRESS || numItemsDone >= numItems || operation.isCanceled()) {
+                return;
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (now - mLastProgressTime < PROGRESS_INTERVAL) {
+                return;
+            }
+            mLastProgressTime = now;
+            final int resId = (operation.getOperation() == OPERATION_DELETE) ? R.string.deleting_items : R.string.rotating_items;
+            final Context context = mContext;
+            if (context != null) {
+                showToast(context.getResources().getString(resId, numItemsDone, numItems), Toast.LENGTH_SHORT);
+            }
+        }
+    };
+
     public void removeMediaSet(MediaSet set) {
         synchronized (mMediaSets) {
             mMediaSets.remove(set);
         }
+        unindexMediaSet(set);
         mMediaFeedNeedsToRun = true;
     }
 
@@ -311,7 +444,7 @@ public final class MediaFeed implements Runnable {
             if (slotIndex >= setToUse.getNumItems()) {
                 return null;
             }
-            mSingleWrapper.getItems().set(0, items.get(slotIndex));
+            mSingleWrapper.setItem(0, items.get(slotIndex));
             return mSingleWrapper;
         } else if (currentMediaSetIndex != Shared.INVALID && currentMediaSetIndex < mediaSetsSize) {
             MediaSet set = mediaSets.get(currentMediaSetIndex);
@@ -421,6 +554,9 @@ public final class MediaFeed implements Runnable {
                         synchronized (mMediaSets) {
                             mMediaSets.clear();
                         }
+                        synchronized (mMediaSetIndex) {
+                            mMediaSetIndex.clear();
+                        }
                     }
                     try {
                         Thread.sleep(sleepMs);
@@ -454,6 +590,7 @@ public final class MediaFeed implements Runnable {
                                     dataSource.loadItemsForSet(this, set, numItemsLoaded, 8);
                                     if (set.getNumExpectedItems() == 0) {
                                         mediaSets.remove(set);
+                                        unindexMediaSet(set);
                                         break;
                                     }
                                     if (mListener != null) {
@@ -464,6 +601,7 @@ public final class MediaFeed implements Runnable {
                                 }
                                 if (!set.setContainsValidItems()) {
                                     mediaSets.remove(set);
+                                    unindexMediaSet(set);
                                     if (mListener != null) {
                                         mListener.onFeedChanged(this, false);
                                     }
@@ -481,6 +619,7 @@ public final class MediaFeed implements Runnable {
                                         dataSource.loadItemsForSet(this, set, numItemsLoaded, 8);
                                         if (set.getNumExpectedItems() == 0) {
                                             mediaSets.remove(set);
+                                            unindexMediaSet(set);
                                             break;
                                         }
                                         if (mListener != null) {
@@ -540,6 +679,7 @@ public final class MediaFeed implements Runnable {
                                     * NUM_ITEMS_LOOKAHEAD + NUM_ITEMS_LOOKAHEAD);
                             if (set.getNumExpectedItems() == 0) {
                                 mediaSets.remove(set);
+                                unindexMediaSet(set);
                                 mListener.onFeedChanged(this, false);
                             }
                             if (numItemsLoaded != set.mNumItemsLoaded && mListener != null) {
@@ -551,17 +691,10 @@ public final class MediaFeed implements Runnable {
                     if (filter != null && mMediaFilteredSet == null) {
                         if (expandedSetIndex != Shared.INVALID) {
                             MediaSet set = mediaSets.get(expandedSetIndex);
-                            ArrayList<MediaItem> items = set.getItems();
-                            int numItems = set.getNumItems();
                             MediaSet filteredSet = new MediaSet();
-                            filteredSet.setNumExpectedItems(numItems);
+                            filteredSet.setNumExpectedItems(set.getNumItems());
                             mMediaFilteredSet = filteredSet;
-                            for (int i = 0; i < numItems; ++i) {
-                                MediaItem item = items.get(i);
-                                if (filter.pass(item)) {
-                                    filteredSet.addItem(item);
-                                }
-                            }
+                            filter.apply(set, filteredSet);
                             filteredSet.updateNumExpectedItems();
                             filteredSet.generateTitle(true);
                         }
@@ -679,6 +812,7 @@ public final class MediaFeed implements Runnable {
         int numSets = mediaSets.size();
         if (numSets == 0) {
             mediaSets.add(mediaSet);
+            indexMediaSet(mediaSet);
             return;
         }
         MediaSet setToFind = mediaSets.get(0);
@@ -702,6 +836,11 @@ public final class MediaFeed implements Runnable {
                 mediaSets.set(i, setPrev);
                 mediaSets.set(i - 1, setEnd);
             }
+        } else {
+            // The set was not in the feed and has taken the place of the first
+            // one.
+            unindexMediaSet(setToFind);
+            indexMediaSet(mediaSet);
         }
         mMediaFeedNeedsToRun = true;
     }
@@ -718,6 +857,7 @@ public final class MediaFeed implements Runnable {
                 mediaSet.mHasImages = thisSet.mHasImages;
                 mediaSet.mHasVideos = thisSet.mHasVideos;
                 mediaSets.set(i, mediaSet);
+                indexMediaSet(mediaSet);
                 break;
             }
         }
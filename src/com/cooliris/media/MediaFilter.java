@@ -1,5 +1,23 @@
 package com.cooliris.media;
 
+import java.util.ArrayList;
+
 public abstract class MediaFilter {
     public abstract boolean pass(MediaItem item);
+
+    /**
+     * Adds the items of the source set that pass the filter to the
+     * destination set, preserving their order. Filters that can use the
+     * source set's index override this to avoid visiting every item.
+     */
+    public void apply(MediaSet source, MediaSet destination) {
+        ArrayList<MediaItem> items = source.getItems();
+        int numItems = source.getNumItems();
+        for (int i = 0; i < numItems; ++i) {
+            MediaItem item = items.get(i);
+            if (pass(item)) {
+                destination.addItem(item);
+            }
+        }
+    }
 }
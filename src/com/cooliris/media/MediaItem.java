@@ -17,18 +17,15 @@ public final class MediaItem {
     public static final String ID = new String("id");
     public long mId;
 
-    public String mGuid;
     public String mCaption;
     public String mEditUri;
     public String mContentUri;
     public String mThumbnailUri;
     public String mScreennailUri;
-    public String mMicroThumbnailUri;
     public String mWeblink;
     public String mMimeType;
     private String mDisplayMimeType;
     private int mMediaType = -1;
-    public String mRole;
     public String mDescription;
 
     // Location-based properties of the item.
@@ -114,9 +111,9 @@ public final class MediaItem {
         if (mDisplayMimeType == null && mMimeType != null) {
             int slashPos = mMimeType.indexOf('/');
             if (slashPos != -1 && slashPos + 1 < mMimeType.length()) {
-                mDisplayMimeType = mMimeType.substring(slashPos + 1).toUpperCase();
+                mDisplayMimeType = StringPool.intern(mMimeType.substring(slashPos + 1).toUpperCase());
             } else {
-                mDisplayMimeType = mMimeType.toUpperCase();
+                mDisplayMimeType = StringPool.intern(mMimeType.toUpperCase());
             }
         }
         return (mDisplayMimeType == null) ? "" : mDisplayMimeType;
@@ -4,6 +4,7 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.concurrent.ScheduledFuture;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -19,6 +20,7 @@ public final class MediaItemTexture extends Texture {
     public static final int MAX_FACES = 1;
     private static final String TAG = "MediaItemTexture";
     private static final int CACHE_HEADER_SIZE = 12;
+    private static final long VIDEO_THUMBNAIL_TIMEOUT = 5000; // ms.
 
     private final Config mConfig;
     private final MediaItem mItem;
@@ -121,8 +123,14 @@ public final class MediaItemTexture extends Texture {
                                 }
                             }
                         }
+                        final long crc64 = Utils.Crc64Long(item.mFilePath);
                         retVal = UriTexture.createFromUri(mContext, mItem.mContentUri, UriTexture.MAX_RESOLUTION,
-                                UriTexture.MAX_RESOLUTION, Utils.Crc64Long(item.mFilePath), null);
+                                UriTexture.MAX_RESOLUTION, crc64, null);
+                        if (retVal != null && cache == LocalDataSource.sThumbnailCache) {
+                            // Keep a screennail for the next time this image
+                            // is shown.
+                            CacheService.writeScreennailToCache(crc64, retVal, item.mDateModifiedInSec * 1000);
+                        }
                     } catch (IOException e) {
                         ;
                     } catch (URISyntaxException e) {
@@ -131,22 +139,14 @@ public final class MediaItemTexture extends Texture {
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } else {
                     Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
-                    new Thread() {
-                        public void run() {
-                            try {
-                                Thread.sleep(5000);
-                            } catch (InterruptedException e) {
-                                ;
-                            }
-                            try {
-                                MediaStore.Video.Thumbnails.cancelThumbnailRequest(mContext.getContentResolver(), mItem.mId);
-                            } catch (Exception e) {
-                                ;
-                            }
-                        }
-                    }.start();
-                    retVal = MediaStore.Video.Thumbnails.getThumbnail(mContext.getContentResolver(), mItem.mId,
-                            MediaStore.Video.Thumbnails.MINI_KIND, null);
+                    final ScheduledFuture<?> timeout = Timeouts.cancelVideoThumbnailAfter(mContext.getContentResolver(),
+                            mItem.mId, VIDEO_THUMBNAIL_TIMEOUT);
+                    try {
+                        retVal = MediaStore.Video.Thumbnails.getThumbnail(mContext.getContentResolver(), mItem.mId,
+                                MediaStore.Video.Thumbnails.MINI_KIND, null);
+                    } finally {
+                        timeout.cancel(false);
+                    }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 }
             } catch (OutOfMemoryError e) {
@@ -48,6 +48,9 @@ public class MediaSet {
     public boolean mLatLongDetermined = false;
     public boolean mReverseGeocodedLocationComputed = false;
     public boolean mReverseGeocodedLocationRequestMade = false;
+    // Set to true once a geocoder worker has picked up the set, so that
+    // duplicate requests in the queues are skipped.
+    public boolean mReverseGeocodedLocationClaimed = false;
 
     public String mTitleString;
     public String mTruncTitleString;
@@ -60,6 +63,7 @@ public class MediaSet {
     public boolean mSyncPending = false;
 
     private ArrayList<MediaItem> mItems;
+    private MediaSetIndex mIndex;
     public int mNumItemsLoaded = 0;
     // mNumExpectedItems is preset to how many items are expected to be in the
     // set as it is used to visually
@@ -91,6 +95,27 @@ public class MediaSet {
         return mItems;
     }
 
+    /**
+     * @return the search index over the current items, built on first use and
+     *         dropped whenever the items change.
+     */
+    public synchronized MediaSetIndex getIndex() {
+        MediaSetIndex index = mIndex;
+        if (index == null) {
+            index = new MediaSetIndex(mItems);
+            mIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Drops the index after the items change. Runs under the lock of
+     * getIndex() so that an index built from the old items is not kept.
+     */
+    private synchronized void invalidateIndex() {
+        mIndex = null;
+    }
+
     public void setNumExpectedItems(int numExpectedItems) {
         mItems.ensureCapacity(numExpectedItems);
         mNumExpectedItems = numExpectedItems;
@@ -126,6 +151,7 @@ public class MediaSet {
         mNumExpectedItems = 16;
         mNumExpectedItemsCountAccurate = false;
         mNumItemsLoaded = 0;
+        invalidateIndex();
     }
 
     /**
@@ -163,6 +189,7 @@ public class MediaSet {
         } else {
             mItems.add(item);
         }
+        invalidateIndex();
         if (item == null) {
             return;
         }
@@ -216,6 +243,15 @@ public class MediaSet {
         }
     }
 
+    /**
+     * Replaces the item at the given position, like ArrayList.set, without
+     * updating the bounds or counts of the set.
+     */
+    public void setItem(final int index, final MediaItem item) {
+        mItems.set(index, item);
+        invalidateIndex();
+    }
+
     /**
      * Removes a MediaItem if present in the MediaSet.
      * 
@@ -224,6 +260,7 @@ public class MediaSet {
      */
     public boolean removeItem(final MediaItem itemToRemove) {
         if (mItems.remove(itemToRemove)) {
+            invalidateIndex();
             --mNumExpectedItems;
             --mNumItemsLoaded;
             return true;
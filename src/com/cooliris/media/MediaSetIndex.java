@@ -0,0 +1,84 @@
+package com.cooliris.media;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Lazily built search structures over the items of a MediaSet, used to
+ * evaluate filters without visiting every item. The index is a snapshot and is
+ * discarded by the set whenever its items change.
+ */
+public final class MediaSetIndex {
+    private static final double FIXED_POINT_SCALE = 1000000.0;
+
+    private final ArrayList<MediaItem> mItems;
+    private final int mNumItems;
+    // Item indices ordered by latitude, and the matching fixed-point
+    // latitudes. Only items with a valid location are included.
+    private int[] mLatitudeOrder;
+    private int[] mSortedLatitudes;
+
+    public MediaSetIndex(ArrayList<MediaItem> items) {
+        mItems = items;
+        mNumItems = items.size();
+    }
+
+    /**
+     * Returns the indices, in ascending order, of the items whose latitude is
+     * within the given range.
+     */
+    public synchronized int[] queryLatitudeRange(double minLatitude, double maxLatitude) {
+        if (mLatitudeOrder == null) {
+            buildLatitudeIndex();
+        }
+        final int[] sortedLatitudes = mSortedLatitudes;
+        final int begin = lowerBound(sortedLatitudes, toFixedPoint(minLatitude));
+        final int end = lowerBound(sortedLatitudes, toFixedPoint(maxLatitude) + 1);
+        final int[] indices = new int[Math.max(0, end - begin)];
+        System.arraycopy(mLatitudeOrder, begin, indices, 0, indices.length);
+        Arrays.sort(indices);
+        return indices;
+    }
+
+    private void buildLatitudeIndex() {
+        // Sort (latitude, index) pairs packed into longs so that no objects are
+        // created per item.
+        final ArrayList<MediaItem> items = mItems;
+        final int numItems = mNumItems;
+        final long[] keys = new long[numItems];
+        int numKeys = 0;
+        for (int i = 0; i < numItems; ++i) {
+            final MediaItem item = items.get(i);
+            if (item != null && item.isLatLongValid()) {
+                keys[numKeys++] = ((long) toFixedPoint(item.mLatitude) << 32) | i;
+            }
+        }
+        Arrays.sort(keys, 0, numKeys);
+        final int[] order = new int[numKeys];
+        final int[] latitudes = new int[numKeys];
+        for (int i = 0; i < numKeys; ++i) {
+            order[i] = (int) keys[i];
+            latitudes[i] = (int) (keys[i] >> 32);
+        }
+        mLatitudeOrder = order;
+        mSortedLatitudes = latitudes;
+    }
+
+    private static int toFixedPoint(double degrees) {
+        return (int) Math.floor(degrees * FIXED_POINT_SCALE);
+    }
+
+    private static int lowerBound(int[] values, int value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (values[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
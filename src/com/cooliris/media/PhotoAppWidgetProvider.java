@@ -30,7 +30,11 @@ import android.util.Log;
 import android.widget.RemoteViews;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Simple widget to show a user-selected picture.
@@ -77,29 +81,63 @@ public class PhotoAppWidgetProvider extends AppWidgetProvider {
         return views;
     }
 
+    /**
+     * Stores the photo of each widget as a pre-scaled PNG file named after the
+     * widget id, with the file and its size recorded in a database. Files are
+     * written to a temporary file and renamed into place so that a widget
+     * never reads a partial photo. Recently shown photos are kept decoded.
+     */
     static class PhotoDatabaseHelper extends SQLiteOpenHelper {
         private static final String DATABASE_NAME = "launcher.db";
 
-        private static final int DATABASE_VERSION = 2;
+        private static final int DATABASE_VERSION = 3;
+        // The last version that stored photos as blobs.
+        private static final int DATABASE_VERSION_BLOBS = 2;
 
         static final String TABLE_PHOTOS = "photos";
         static final String FIELD_APPWIDGET_ID = "appWidgetId";
         static final String FIELD_PHOTO_BLOB = "photoBlob";
+        static final String FIELD_PHOTO_PATH = "photoPath";
+        static final String FIELD_PHOTO_WIDTH = "photoWidth";
+        static final String FIELD_PHOTO_HEIGHT = "photoHeight";
+
+        private static final String PHOTO_DIRECTORY = "widget-photos";
+        // Photos are scaled to fit the size the widget asks the crop for.
+        static final int PHOTO_SIZE = 192;
+        private static final int MAX_CACHED_PHOTOS = 4;
+
+        // Decoded photos by widget id, least recently used first.
+        private static final LinkedHashMap<Integer, Bitmap> sPhotoCache = new LinkedHashMap<Integer, Bitmap>(MAX_CACHED_PHOTOS,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Bitmap> eldest) {
+                return size() > MAX_CACHED_PHOTOS;
+            }
+        };
+
+        private final File mPhotoDirectory;
 
         PhotoDatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            mPhotoDirectory = new File(context.getFilesDir(), PHOTO_DIRECTORY);
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
-            db.execSQL("CREATE TABLE " + TABLE_PHOTOS + " (" + FIELD_APPWIDGET_ID + " INTEGER PRIMARY KEY," + FIELD_PHOTO_BLOB
-                    + " BLOB" + ");");
+            db.execSQL("CREATE TABLE " + TABLE_PHOTOS + " (" + FIELD_APPWIDGET_ID + " INTEGER PRIMARY KEY," + FIELD_PHOTO_PATH
+                    + " TEXT," + FIELD_PHOTO_WIDTH + " INTEGER," + FIELD_PHOTO_HEIGHT + " INTEGER" + ");");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             int version = oldVersion;
 
+            if (version == DATABASE_VERSION_BLOBS) {
+                migratePhotoBlobs(db);
+                version = DATABASE_VERSION;
+            }
             if (version != DATABASE_VERSION) {
                 Log.w(TAG, "Destroying all old data.");
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_PHOTOS);
@@ -107,33 +145,108 @@ public class PhotoAppWidgetProvider extends AppWidgetProvider {
             }
         }
 
+        /**
+         * Moves the photos stored as blobs to files. Blobs are already PNG, so
+         * they are written out as they are.
+         */
+        private void migratePhotoBlobs(SQLiteDatabase db) {
+            final String oldTable = TABLE_PHOTOS + "_blobs";
+            db.execSQL("ALTER TABLE " + TABLE_PHOTOS + " RENAME TO " + oldTable);
+            onCreate(db);
+            final Cursor c = db.query(oldTable, new String[] { FIELD_APPWIDGET_ID, FIELD_PHOTO_BLOB }, null, null, null, null,
+                    null);
+            int numMigrated = 0;
+            try {
+                final BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                while (c.moveToNext()) {
+                    final int appWidgetId = c.getInt(0);
+                    final byte[] data = c.getBlob(1);
+                    if (data == null) {
+                        continue;
+                    }
+                    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                    try {
+                        final File file = writePhotoFile(appWidgetId, data);
+                        insertPhoto(db, appWidgetId, file, options.outWidth, options.outHeight);
+                        ++numMigrated;
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not migrate photo of widget " + appWidgetId, e);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            db.execSQL("DROP TABLE " + oldTable);
+            Log.i(TAG, "Moved " + numMigrated + " widget photos to files.");
+        }
+
+        private File writePhotoFile(int appWidgetId, byte[] data) throws IOException {
+            final File directory = mPhotoDirectory;
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            final File file = new File(directory, appWidgetId + ".png");
+            final File tempFile = new File(directory, appWidgetId + ".png.tmp");
+            final FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(data);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Could not rename " + tempFile);
+            }
+            return file;
+        }
+
+        private static void insertPhoto(SQLiteDatabase db, int appWidgetId, File file, int width, int height) {
+            ContentValues values = new ContentValues();
+            values.put(FIELD_APPWIDGET_ID, appWidgetId);
+            values.put(FIELD_PHOTO_PATH, file.getAbsolutePath());
+            values.put(FIELD_PHOTO_WIDTH, width);
+            values.put(FIELD_PHOTO_HEIGHT, height);
+            db.replaceOrThrow(TABLE_PHOTOS, null, values);
+        }
+
         /**
          * Store the given bitmap in this database for the given appWidgetId.
          */
         public boolean setPhoto(int appWidgetId, Bitmap bitmap) {
             boolean success = false;
             try {
+                // Scale the photo down to the size the widget shows it at.
+                final int width = bitmap.getWidth();
+                final int height = bitmap.getHeight();
+                Bitmap scaled = bitmap;
+                if (width > PHOTO_SIZE || height > PHOTO_SIZE) {
+                    final float scale = (float) PHOTO_SIZE / Math.max(width, height);
+                    scaled = Bitmap.createScaledBitmap(bitmap, Math.round(width * scale), Math.round(height * scale), true);
+                }
+
                 // Try go guesstimate how much space the icon will take when
                 // serialized to avoid unnecessary allocations/copies during
                 // the write.
-                int size = bitmap.getWidth() * bitmap.getHeight() * 4;
+                int size = scaled.getWidth() * scaled.getHeight() * 4;
                 ByteArrayOutputStream out = new ByteArrayOutputStream(size);
-                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                scaled.compress(Bitmap.CompressFormat.PNG, 100, out);
                 out.flush();
                 out.close();
 
-                ContentValues values = new ContentValues();
-                values.put(PhotoDatabaseHelper.FIELD_APPWIDGET_ID, appWidgetId);
-                values.put(PhotoDatabaseHelper.FIELD_PHOTO_BLOB, out.toByteArray());
-
+                final File file = writePhotoFile(appWidgetId, out.toByteArray());
                 SQLiteDatabase db = getWritableDatabase();
-                db.insertOrThrow(PhotoDatabaseHelper.TABLE_PHOTOS, null, values);
+                insertPhoto(db, appWidgetId, file, scaled.getWidth(), scaled.getHeight());
+                synchronized (sPhotoCache) {
+                    sPhotoCache.put(appWidgetId, scaled);
+                }
 
                 success = true;
             } catch (SQLiteException e) {
                 Log.e(TAG, "Could not open database", e);
             } catch (IOException e) {
-                Log.e(TAG, "Could not serialize photo", e);
+                Log.e(TAG, "Could not write photo", e);
             }
             if (LOGD) {
                 Log.d(TAG, "setPhoto success=" + success);
@@ -141,14 +254,20 @@ public class PhotoAppWidgetProvider extends AppWidgetProvider {
             return success;
         }
 
-        static final String[] PHOTOS_PROJECTION = { FIELD_PHOTO_BLOB, };
+        static final String[] PHOTOS_PROJECTION = { FIELD_PHOTO_PATH, };
 
-        static final int INDEX_PHOTO_BLOB = 0;
+        static final int INDEX_PHOTO_PATH = 0;
 
         /**
          * Inflate and return a bitmap for the given appWidgetId.
          */
         public Bitmap getPhoto(int appWidgetId) {
+            synchronized (sPhotoCache) {
+                final Bitmap cachedBitmap = sPhotoCache.get(appWidgetId);
+                if (cachedBitmap != null) {
+                    return cachedBitmap;
+                }
+            }
             Cursor c = null;
             Bitmap bitmap = null;
             try {
@@ -161,9 +280,9 @@ public class PhotoAppWidgetProvider extends AppWidgetProvider {
                 }
 
                 if (c != null && c.moveToFirst()) {
-                    byte[] data = c.getBlob(INDEX_PHOTO_BLOB);
-                    if (data != null) {
-                        bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+                    String path = c.getString(INDEX_PHOTO_PATH);
+                    if (path != null) {
+                        bitmap = BitmapFactory.decodeFile(path);
                     }
                 }
             } catch (SQLiteException e) {
@@ -173,6 +292,11 @@ public class PhotoAppWidgetProvider extends AppWidgetProvider {
                     c.close();
                 }
             }
+            if (bitmap != null) {
+                synchronized (sPhotoCache) {
+                    sPhotoCache.put(appWidgetId, bitmap);
+                }
+            }
             return bitmap;
         }
 
@@ -180,6 +304,9 @@ public class PhotoAppWidgetProvider extends AppWidgetProvider {
          * Remove any bitmap associated with the given appWidgetId.
          */
         public void deletePhoto(int appWidgetId) {
+            synchronized (sPhotoCache) {
+                sPhotoCache.remove(appWidgetId);
+            }
             try {
                 SQLiteDatabase db = getWritableDatabase();
                 String whereClause = String.format("%s=%d", FIELD_APPWIDGET_ID, appWidgetId);
@@ -187,6 +314,7 @@ public class PhotoAppWidgetProvider extends AppWidgetProvider {
             } catch (SQLiteException e) {
                 Log.e(TAG, "Could not delete photo from database", e);
             }
+            new File(mPhotoDirectory, appWidgetId + ".png").delete();
         }
     }
 
@@ -175,7 +175,7 @@ public final class PicasaDataSource implements DataSource {
                 final MediaItem item = new MediaItem();
                 item.mId = photo.id;
                 item.mEditUri = photo.editUri;
-                item.mMimeType = photo.contentType;
+                item.mMimeType = StringPool.intern(photo.contentType);
                 item.mDateTakenInMs = photo.dateTaken;
                 item.mLatitude = photo.latitude;
                 item.mLongitude = photo.longitude;
@@ -200,25 +200,29 @@ public final class PicasaDataSource implements DataSource {
         }
     }
 
-    public boolean performOperation(final int operation, final ArrayList<MediaBucket> mediaBuckets, final Object data) {
+    public boolean performOperation(final int operation, final ArrayList<MediaBucket> mediaBuckets, final Object data,
+            final BulkOperation bulkOperation) {
         try {
             if (operation == MediaFeed.OPERATION_DELETE) {
                 ContentProviderClient client = mProviderClient;
-                for (int i = 0, numBuckets = mediaBuckets.size(); i != numBuckets; ++i) {
+                for (int i = 0, numBuckets = mediaBuckets.size(); i != numBuckets && !bulkOperation.isCanceled(); ++i) {
                     MediaBucket bucket = mediaBuckets.get(i);
                     ArrayList<MediaItem> items = bucket.mediaItems;
                     if (items == null) {
                         // Delete an album.
                         String albumUri = PicasaContentProvider.ALBUMS_URI + "/" + bucket.mediaSet.mId;
                         client.delete(Uri.parse(albumUri), null, null);
+                        bulkOperation.onItemsDone(Math.max(1, bucket.mediaSet.getNumExpectedItems()));
                     } else {
-                        // Delete a set of photos.
-                        for (int j = 0, numItems = items.size(); j != numItems; ++j) {
+                        // Delete a set of photos. Each one is a request to the
+                        // server, so check for cancellation in between.
+                        for (int j = 0, numItems = items.size(); j != numItems && !bulkOperation.isCanceled(); ++j) {
                             MediaItem item = items.get(j);
                             if (item != null) {
                                 String itemUri = PicasaContentProvider.PHOTOS_URI + "/" + item.mId;
                                 client.delete(Uri.parse(itemUri), null, null);
                             }
+                            bulkOperation.onItemsDone(1);
                         }
                     }
                 }
@@ -7,6 +7,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 
@@ -17,16 +19,28 @@ import android.location.Geocoder;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Process;
+import android.util.Log;
 
-public final class ReverseGeocoder extends Thread {
+public final class ReverseGeocoder {
     private static final int MAX_COUNTRY_NAME_LENGTH = 8;
     // If two points are within 20 miles of each other, use
     // "Around Palo Alto, CA" or "Around Mountain View, CA".
     // instead of directly jumping to the next level and saying
     // "California, US".
     private static final int MAX_LOCALITY_MILE_RANGE = 20;
+    // Addresses resolved for a point are reused for any other point within
+    // this many meters.
+    public static final double DEFAULT_CACHE_RADIUS_METERS = 100;
+    private static final long GEO_CACHE_LOCALE_INDEX = -1;
+    private static final int MAX_MEMORY_CACHE_SIZE = 256;
+    private static final int NUM_WORKERS = 3;
+    private static final int MAX_BATCH_SIZE = 8;
+    // Sets that are on screen are served before those in the buffered range.
     private static final Deque<MediaSet> sQueue = new Deque<MediaSet>();
+    private static final Deque<MediaSet> sBackgroundQueue = new Deque<MediaSet>();
+    private static final HashSet<Long> sInFlightCells = new HashSet<Long>();
     private static final DiskCache sGeoCache = new DiskCache("geocoder-cache");
+    private static final LongSparseArray<CachedAddress> sMemoryCache = new LongSparseArray<CachedAddress>();
     private static final String TAG = "ReverseGeocoder";
     private static Criteria LOCATION_CRITERIA = new Criteria();
     private static Address sCurrentAddress; // last known address
@@ -39,53 +53,165 @@ public final class ReverseGeocoder extends Thread {
         LOCATION_CRITERIA.setAltitudeRequired(false);
     }
 
-    private Geocoder mGeocoder;
+    /**
+     * The source of addresses for points that are not in the cache. Tests can
+     * supply a local stub in place of the platform geocoder.
+     */
+    public interface Backend {
+        List<Address> getFromLocation(double latitude, double longitude, int maxResults) throws IOException;
+    }
+
+    private static final class CachedAddress {
+        public CachedAddress(double latitude, double longitude, Address address) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.address = address;
+        }
+
+        public final double latitude;
+        public final double longitude;
+        public final Address address;
+    }
+
+    private final Backend mBackend;
     private final Context mContext;
+    private volatile double mCacheRadiusMeters = DEFAULT_CACHE_RADIUS_METERS;
+    private final Thread[] mWorkers = new Thread[NUM_WORKERS];
+    private boolean mCurrentAddressComputed;
+    private Address mCurrentAddress;
 
     public ReverseGeocoder(Context context) {
-        super(TAG);
+        this(context, null);
+    }
+
+    public ReverseGeocoder(Context context, Backend backend) {
         mContext = context;
-        start();
+        if (backend == null) {
+            final Geocoder geocoder = new Geocoder(context);
+            backend = new Backend() {
+                public List<Address> getFromLocation(double latitude, double longitude, int maxResults) throws IOException {
+                    return geocoder.getFromLocation(latitude, longitude, maxResults);
+                }
+            };
+        }
+        mBackend = backend;
+        invalidateCacheIfLocaleChanged();
+        synchronized (sQueue) {
+            sQueue.clear();
+            sBackgroundQueue.clear();
+        }
+        final Thread[] workers = mWorkers;
+        for (int i = 0; i < NUM_WORKERS; ++i) {
+            workers[i] = new Thread(TAG + i) {
+                public void run() {
+                    processQueue();
+                }
+            };
+            workers[i].start();
+        }
+    }
+
+    public void setCacheRadius(double meters) {
+        mCacheRadiusMeters = meters;
     }
 
     public void enqueue(MediaSet set) {
-        Deque<MediaSet> inQueue = sQueue;
-        synchronized (inQueue) {
-            inQueue.addFirst(set);
-            inQueue.notify();
+        enqueue(set, true);
+    }
+
+    /**
+     * Queues a set for geocoding. Visible sets are served first, most recent
+     * request first. A set that is queued again once it becomes visible is
+     * processed only once.
+     */
+    public void enqueue(MediaSet set, boolean visible) {
+        Deque<MediaSet> queue = sQueue;
+        synchronized (queue) {
+            if (visible) {
+                queue.addFirst(set);
+            } else {
+                sBackgroundQueue.addFirst(set);
+            }
+            queue.notify();
         }
     }
 
-    @Override
-    public void run() {
+    private void processQueue() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        Deque<MediaSet> queue = sQueue;
-        mGeocoder = new Geocoder(mContext);
-        queue.clear();
+        final Deque<MediaSet> queue = sQueue;
+        final Deque<MediaSet> backgroundQueue = sBackgroundQueue;
+        final ArrayList<MediaSet> batch = new ArrayList<MediaSet>();
         try {
             for (;;) {
-                // Wait for the next request.
-                MediaSet set;
+                // Wait for the next request and take a few more queued up
+                // behind it.
                 synchronized (queue) {
-                    while ((set = queue.pollFirst()) == null) {
+                    MediaSet set;
+                    while ((set = pollNext(queue, backgroundQueue)) == null) {
                         queue.wait();
                     }
+                    do {
+                        batch.add(set);
+                    } while (batch.size() < MAX_BATCH_SIZE && (set = pollNext(queue, backgroundQueue)) != null);
                 }
-                // Process the request.
-                process(set);
+                // Resolve the corners of all the sets in one pass, then build
+                // the location strings from the cache.
+                prefetch(batch);
+                for (int i = 0, size = batch.size(); i < size; ++i) {
+                    process(batch.get(i));
+                }
+                batch.clear();
             }
         } catch (InterruptedException e) {
             // Terminate the thread.
         }
     }
 
+    private static MediaSet pollNext(final Deque<MediaSet> queue, final Deque<MediaSet> backgroundQueue) {
+        // Called with the queue lock held. Skip sets that were already
+        // claimed through another request.
+        MediaSet set;
+        while ((set = queue.pollFirst()) != null || (set = backgroundQueue.pollFirst()) != null) {
+            if (!set.mReverseGeocodedLocationComputed && !set.mReverseGeocodedLocationClaimed) {
+                set.mReverseGeocodedLocationClaimed = true;
+                return set;
+            }
+        }
+        return null;
+    }
+
     public void flushCache() {
         sGeoCache.flush();
     }
 
     public void shutdown() {
         flushCache();
-        this.interrupt();
+        for (Thread worker : mWorkers) {
+            worker.interrupt();
+        }
+    }
+
+    private void prefetch(final ArrayList<MediaSet> sets) {
+        // Corners that fall into the same cell are only looked up once since
+        // the first lookup populates the cache for the rest.
+        for (int i = 0, size = sets.size(); i < size; ++i) {
+            final MediaSet set = sets.get(i);
+            if (!set.mLatLongDetermined) {
+                continue;
+            }
+            final double[] corners = selectCorners(set);
+            lookupAddress(corners[0], corners[1]);
+            lookupAddress(corners[2], corners[3]);
+        }
+    }
+
+    private static double[] selectCorners(final MediaSet set) {
+        // Use the pair of extreme points along the axis with the larger
+        // spread, as {minLat, minLon, maxLat, maxLon}.
+        if (Math.abs(set.mMaxLatLatitude - set.mMinLatLatitude) < Math.abs(set.mMaxLonLongitude - set.mMinLonLongitude)) {
+            return new double[] { set.mMinLonLatitude, set.mMinLonLongitude, set.mMaxLonLatitude, set.mMaxLonLongitude };
+        }
+        return new double[] { set.mMinLatLatitude, set.mMinLatLongitude, set.mMaxLatLatitude, set.mMaxLatLongitude };
     }
 
     private boolean process(final MediaSet set) {
@@ -101,16 +227,11 @@ public final class ReverseGeocoder extends Thread {
 
     protected String computeMostGranularCommonLocation(final MediaSet set) {
         // The overall min and max latitudes and longitudes of the set.
-        double setMinLatitude = set.mMinLatLatitude;
-        double setMinLongitude = set.mMinLatLongitude;
-        double setMaxLatitude = set.mMaxLatLatitude;
-        double setMaxLongitude = set.mMaxLatLongitude;
-        if (Math.abs(set.mMaxLatLatitude - set.mMinLatLatitude) < Math.abs(set.mMaxLonLongitude - set.mMinLonLongitude)) {
-            setMinLatitude = set.mMinLonLatitude;
-            setMinLongitude = set.mMinLonLongitude;
-            setMaxLatitude = set.mMaxLonLatitude;
-            setMaxLongitude = set.mMaxLonLongitude;
-        }
+        final double[] corners = selectCorners(set);
+        double setMinLatitude = corners[0];
+        double setMinLongitude = corners[1];
+        double setMaxLatitude = corners[2];
+        double setMaxLongitude = corners[3];
         Address addr1 = lookupAddress(setMinLatitude, setMinLongitude);
         Address addr2 = lookupAddress(setMaxLatitude, setMaxLongitude);
         if (addr1 == null)
@@ -123,30 +244,14 @@ public final class ReverseGeocoder extends Thread {
 
         // Get current location, we decide the granularity of the string based
         // on this.
-        LocationManager locationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
-        Location location = null;
-        List<String> providers = locationManager.getAllProviders();
-        for (int i = 0; i < providers.size(); ++i) {
-            String provider = providers.get(i);
-            location = (provider != null) ? locationManager.getLastKnownLocation(provider) : null;
-            if (location != null)
-                break;
-        }
         String currentCity = "";
         String currentAdminArea = "";
         String currentCountry = Locale.getDefault().getCountry();
-        if (location != null) {
-            Address currentAddress = lookupAddress(location.getLatitude(), location.getLongitude());
-            if (currentAddress == null) {
-                currentAddress = sCurrentAddress;
-            } else {
-                sCurrentAddress = currentAddress;
-            }
-            if (currentAddress != null && currentAddress.getCountryCode() != null) {
-                currentCity = checkNull(currentAddress.getLocality());
-                currentCountry = checkNull(currentAddress.getCountryCode());
-                currentAdminArea = checkNull(currentAddress.getAdminArea());
-            }
+        Address currentAddress = getCurrentAddress();
+        if (currentAddress != null && currentAddress.getCountryCode() != null) {
+            currentCity = checkNull(currentAddress.getLocality());
+            currentCountry = checkNull(currentAddress.getCountryCode());
+            currentAdminArea = checkNull(currentAddress.getAdminArea());
         }
 
         String closestCommonLocation = null;
@@ -284,6 +389,49 @@ public final class ReverseGeocoder extends Thread {
         return closestCommonLocation;
     }
 
+    private Address getCurrentAddress() {
+        // The device location only affects the granularity of the labels, so
+        // it is resolved once per session instead of once per set. The lookup
+        // blocks on the network and is made without holding the lock; workers
+        // that race here at most repeat it.
+        synchronized (mWorkers) {
+            if (mCurrentAddressComputed) {
+                return mCurrentAddress;
+            }
+        }
+        LocationManager locationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        Location location = null;
+        List<String> providers = locationManager.getAllProviders();
+        for (int i = 0; i < providers.size(); ++i) {
+            String provider = providers.get(i);
+            location = (provider != null) ? locationManager.getLastKnownLocation(provider) : null;
+            if (location != null)
+                break;
+        }
+        Address currentAddress = null;
+        if (location != null) {
+            currentAddress = lookupAddress(location.getLatitude(), location.getLongitude());
+        }
+        synchronized (mWorkers) {
+            if (mCurrentAddressComputed) {
+                return mCurrentAddress;
+            }
+            if (location != null) {
+                if (currentAddress == null) {
+                    currentAddress = sCurrentAddress;
+                } else {
+                    sCurrentAddress = currentAddress;
+                }
+                // Retry on the next set if the lookup failed.
+                mCurrentAddressComputed = (currentAddress != null);
+            } else {
+                mCurrentAddressComputed = true;
+            }
+            mCurrentAddress = currentAddress;
+            return currentAddress;
+        }
+    }
+
     private String checkNull(String locality) {
         if (locality == null)
             return "";
@@ -382,94 +530,206 @@ public final class ReverseGeocoder extends Thread {
     }
 
     private Address lookupAddress(final double latitude, final double longitude) {
-        try {
-            long locationKey = (long) (((latitude + LocationMediaFilter.LAT_MAX) * 2 * LocationMediaFilter.LAT_MAX + (longitude + LocationMediaFilter.LON_MAX)) * LocationMediaFilter.EARTH_RADIUS_METERS);
-            byte[] cachedLocation = sGeoCache.get(locationKey, 0);
-            Address address = null;
-            if (cachedLocation == null || cachedLocation.length == 0) {
-                try {
-                    List<Address> addresses = mGeocoder.getFromLocation(latitude, longitude, 1);
-                    if (!addresses.isEmpty()) {
-                        address = addresses.get(0);
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(bos, 256));
-                        Locale locale = address.getLocale();
-                        Utils.writeUTF(dos, locale.getLanguage());
-                        Utils.writeUTF(dos, locale.getCountry());
-                        Utils.writeUTF(dos, locale.getVariant());
-
-                        Utils.writeUTF(dos, address.getThoroughfare());
-                        int numAddressLines = address.getMaxAddressLineIndex();
-                        dos.writeInt(numAddressLines);
-                        for (int i = 0; i < numAddressLines; ++i) {
-                            Utils.writeUTF(dos, address.getAddressLine(i));
-                        }
-                        Utils.writeUTF(dos, address.getFeatureName());
-                        Utils.writeUTF(dos, address.getLocality());
-                        Utils.writeUTF(dos, address.getAdminArea());
-                        Utils.writeUTF(dos, address.getSubAdminArea());
-
-                        Utils.writeUTF(dos, address.getCountryName());
-                        Utils.writeUTF(dos, address.getCountryCode());
-                        Utils.writeUTF(dos, address.getPostalCode());
-                        Utils.writeUTF(dos, address.getPhone());
-                        Utils.writeUTF(dos, address.getUrl());
-
-                        dos.flush();
-                        sGeoCache.put(locationKey, bos.toByteArray(), 0);
-                        dos.close();
-                    }
-                } finally {
+        final double radius = mCacheRadiusMeters;
+        final long cellKey = GeoCell.key(latitude, longitude, radius);
+        CachedAddress cached = getCachedAddress(cellKey);
+        if (cached != null) {
+            return cached.address;
+        }
 
-                }
-            } else {
-                // Parsing the address from the byte stream.
-                DataInputStream dis = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(cachedLocation), 256));
-                String language = Utils.readUTF(dis);
-                String country = Utils.readUTF(dis);
-                String variant = Utils.readUTF(dis);
-                Locale locale = null;
-                if (language != null) {
-                    if (country == null) {
-                        locale = new Locale(language);
-                    } else if (variant == null) {
-                        locale = new Locale(language, country);
-                    } else {
-                        locale = new Locale(language, country, variant);
-                    }
-                }
-                if (!locale.getLanguage().equals(Locale.getDefault().getLanguage())) {
-                    sGeoCache.delete(locationKey);
-                    dis.close();
-                    return lookupAddress(latitude, longitude);
-                }
-                address = new Address(locale);
+        // Reuse an address resolved for a point in a neighbouring cell if it
+        // is within the radius.
+        final long[] neighbourKeys = new long[8];
+        GeoCell.neighbours(latitude, longitude, radius, neighbourKeys);
+        for (int i = 0; i < neighbourKeys.length; ++i) {
+            cached = getCachedAddress(neighbourKeys[i]);
+            if (cached != null
+                    && LocationMediaFilter.distanceBetween(latitude, longitude, cached.latitude, cached.longitude) <= radius) {
+                return cached.address;
+            }
+        }
 
-                address.setThoroughfare(Utils.readUTF(dis));
-                int numAddressLines = dis.readInt();
-                for (int i = 0; i < numAddressLines; ++i) {
-                    address.setAddressLine(i, Utils.readUTF(dis));
+        // Only one worker at a time queries the geocoder for a given cell, the
+        // others wait for its result.
+        final Long inFlightKey = cellKey;
+        synchronized (sInFlightCells) {
+            while (sInFlightCells.contains(inFlightKey)) {
+                try {
+                    sInFlightCells.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
                 }
-                address.setFeatureName(Utils.readUTF(dis));
-                address.setLocality(Utils.readUTF(dis));
-                address.setAdminArea(Utils.readUTF(dis));
-                address.setSubAdminArea(Utils.readUTF(dis));
-
-                address.setCountryName(Utils.readUTF(dis));
-                address.setCountryCode(Utils.readUTF(dis));
-                address.setPostalCode(Utils.readUTF(dis));
-                address.setPhone(Utils.readUTF(dis));
-                address.setUrl(Utils.readUTF(dis));
-                dis.close();
             }
-            return address;
+            cached = getCachedAddress(cellKey);
+            if (cached != null) {
+                return cached.address;
+            }
+            sInFlightCells.add(inFlightKey);
+        }
+        try {
+            return fetchAddress(latitude, longitude, cellKey);
+        } finally {
+            synchronized (sInFlightCells) {
+                sInFlightCells.remove(inFlightKey);
+                sInFlightCells.notifyAll();
+            }
+        }
+    }
 
+    private Address fetchAddress(final double latitude, final double longitude, final long cellKey) {
+        try {
+            final List<Address> addresses = mBackend.getFromLocation(latitude, longitude, 1);
+            if (addresses == null || addresses.isEmpty()) {
+                return null;
+            }
+            final Address address = addresses.get(0);
+            final CachedAddress cached = new CachedAddress(latitude, longitude, address);
+            putMemoryCache(cellKey, cached);
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(bos, 256));
+            writeAddress(dos, cached);
+            dos.flush();
+            sGeoCache.put(cellKey, bos.toByteArray(), 0);
+            dos.close();
+            return address;
         } catch (IOException e) {
             // Ignore.
         }
         return null;
     }
 
+    private static CachedAddress getCachedAddress(final long cellKey) {
+        CachedAddress cached = null;
+        synchronized (sMemoryCache) {
+            cached = sMemoryCache.get(cellKey);
+        }
+        // The disk cache index is in memory, so misses are cheap.
+        if (cached != null || !sGeoCache.isDataAvailable(cellKey, 0)) {
+            return cached;
+        }
+        final byte[] data = sGeoCache.get(cellKey, 0);
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        try {
+            final DataInputStream dis = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(data), 256));
+            cached = readAddress(dis);
+            dis.close();
+        } catch (IOException e) {
+            sGeoCache.delete(cellKey);
+            return null;
+        }
+        putMemoryCache(cellKey, cached);
+        return cached;
+    }
+
+    private static void putMemoryCache(final long cellKey, final CachedAddress cached) {
+        synchronized (sMemoryCache) {
+            if (sMemoryCache.size() >= MAX_MEMORY_CACHE_SIZE) {
+                sMemoryCache.clear();
+            }
+            sMemoryCache.put(cellKey, cached);
+        }
+    }
+
+    private static void invalidateCacheIfLocaleChanged() {
+        // Cached addresses are localized, so drop them all when the locale
+        // changes instead of checking each entry as it is read.
+        final Locale defaultLocale = Locale.getDefault();
+        final byte[] data = sGeoCache.get(GEO_CACHE_LOCALE_INDEX, 0);
+        if (data != null && data.length > 0) {
+            try {
+                final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+                final String language = Utils.readUTF(dis);
+                dis.close();
+                if (defaultLocale.getLanguage().equals(language)) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Treat an unreadable locale as a change.
+            }
+        }
+        sGeoCache.deleteAll();
+        synchronized (sMemoryCache) {
+            sMemoryCache.clear();
+        }
+        try {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            final DataOutputStream dos = new DataOutputStream(bos);
+            Utils.writeUTF(dos, defaultLocale.getLanguage());
+            dos.flush();
+            sGeoCache.put(GEO_CACHE_LOCALE_INDEX, bos.toByteArray(), 0);
+            sGeoCache.flush();
+            dos.close();
+        } catch (IOException e) {
+            Log.i(TAG, "Error writing locale to cache.");
+        }
+    }
+
+    private static void writeAddress(final DataOutputStream dos, final CachedAddress cached) throws IOException {
+        final Address address = cached.address;
+        dos.writeDouble(cached.latitude);
+        dos.writeDouble(cached.longitude);
+        Locale locale = address.getLocale();
+        Utils.writeUTF(dos, locale.getLanguage());
+        Utils.writeUTF(dos, locale.getCountry());
+        Utils.writeUTF(dos, locale.getVariant());
+
+        Utils.writeUTF(dos, address.getThoroughfare());
+        int numAddressLines = address.getMaxAddressLineIndex();
+        dos.writeInt(numAddressLines);
+        for (int i = 0; i < numAddressLines; ++i) {
+            Utils.writeUTF(dos, address.getAddressLine(i));
+        }
+        Utils.writeUTF(dos, address.getFeatureName());
+        Utils.writeUTF(dos, address.getLocality());
+        Utils.writeUTF(dos, address.getAdminArea());
+        Utils.writeUTF(dos, address.getSubAdminArea());
+
+        Utils.writeUTF(dos, address.getCountryName());
+        Utils.writeUTF(dos, address.getCountryCode());
+        Utils.writeUTF(dos, address.getPostalCode());
+        Utils.writeUTF(dos, address.getPhone());
+        Utils.writeUTF(dos, address.getUrl());
+    }
+
+    private static CachedAddress readAddress(final DataInputStream dis) throws IOException {
+        final double latitude = dis.readDouble();
+        final double longitude = dis.readDouble();
+        String language = Utils.readUTF(dis);
+        String country = Utils.readUTF(dis);
+        String variant = Utils.readUTF(dis);
+        Locale locale = Locale.getDefault();
+        if (language != null) {
+            if (country == null) {
+                locale = new Locale(language);
+            } else if (variant == null) {
+                locale = new Locale(language, country);
+            } else {
+                locale = new Locale(language, country, variant);
+            }
+        }
+        Address address = new Address(locale);
+
+        address.setThoroughfare(Utils.readUTF(dis));
+        int numAddressLines = dis.readInt();
+        for (int i = 0; i < numAddressLines; ++i) {
+            address.setAddressLine(i, Utils.readUTF(dis));
+        }
+        address.setFeatureName(Utils.readUTF(dis));
+        address.setLocality(Utils.readUTF(dis));
+        address.setAdminArea(Utils.readUTF(dis));
+        address.setSubAdminArea(Utils.readUTF(dis));
+
+        address.setCountryName(Utils.readUTF(dis));
+        address.setCountryCode(Utils.readUTF(dis));
+        address.setPostalCode(Utils.readUTF(dis));
+        address.setPhone(Utils.readUTF(dis));
+        address.setUrl(Utils.readUTF(dis));
+        return new CachedAddress(latitude, longitude, address);
+    }
+
     private String valueIfEqual(String a, String b) {
         return (a != null && b != null && a.equalsIgnoreCase(b)) ? a : null;
     }
@@ -0,0 +1,42 @@
+package com.cooliris.media;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * A screen-sized rendition of a local image read from
+ * LocalDataSource.sScreennailCache, shown full screen while the hi-res image
+ * is decoded from the original. Fails to load if no screennail of the image
+ * has been cached.
+ */
+public final class ScreennailTexture extends Texture {
+    private final long mCacheId;
+    private final long mTimestamp;
+
+    public ScreennailTexture(long cacheId, long timestamp) {
+        mCacheId = cacheId;
+        mTimestamp = timestamp;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    protected Bitmap load(RenderView view) {
+        final DiskCache cache = LocalDataSource.sScreennailCache;
+        final byte[] data;
+        synchronized (cache) {
+            data = cache.get(mCacheId, mTimestamp);
+        }
+        if (data == null) {
+            return null;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inDither = false;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+}
@@ -1,7 +1,6 @@
 package com.cooliris.media;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -9,12 +8,10 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Environment;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
-import android.provider.MediaStore.Video;
 import android.util.Log;
 
 import com.cooliris.cache.CacheService;
@@ -89,7 +86,7 @@ public class SingleDataSource implements DataSource {
                     item = newItem;
                     String fileUri = new File(item.mFilePath).toURI().toString();
                     parentSet.mName = Utils.getBucketNameFromUri(Uri.parse(fileUri));
-                    parentSet.mId = parseBucketIdFromFileUri(fileUri);
+                    feed.setMediaSetId(parentSet, parseBucketIdFromFileUri(fileUri));
                     parentSet.generateTitle(true);
                 }
             } else if (mUri.startsWith("file://")) {
@@ -124,11 +121,10 @@ public class SingleDataSource implements DataSource {
                 feed.addItemToMediaSet(item, parentSet);
                 // Parse EXIF orientation if a local file.
                 if (mUri.startsWith("file://")) {
-                    try {
-                        ExifInterface exif = new ExifInterface(Uri.parse(mUri).getPath());
-                        item.mRotation = Shared.exifOrientationToDegrees(exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
-                                ExifInterface.ORIENTATION_NORMAL));
-                    } catch (IOException e) {
+                    final ExifReader exif = ExifReader.get();
+                    if (exif.read(Uri.parse(mUri).getPath())) {
+                        item.mRotation = Shared.exifOrientationToDegrees(exif.getOrientation());
+                    } else {
                         Log.i(TAG, "Error reading Exif information, probably not a jpeg.");
                     }
                 }
@@ -246,7 +242,8 @@ public class SingleDataSource implements DataSource {
             // All the buckets.
             set = feed.addMediaSet(0, this); // Create dummy set.
             set.mName = Utils.getBucketNameFromUri(Uri.parse(mUri));
-            set.mId = LocalDataSource.getBucketId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI.toString() + "/" + set.mName);
+            feed.setMediaSetId(set, LocalDataSource.getBucketId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI.toString() + "/"
+                    + set.mName));
             set.setNumExpectedItems(1);
             set.generateTitle(true);
             set.mPicasaAlbumId = Shared.INVALID;
@@ -273,78 +270,54 @@ public class SingleDataSource implements DataSource {
         }
     }
 
-    public boolean performOperation(int operation, ArrayList<MediaBucket> mediaBuckets, Object data) {
+    public boolean performOperation(int operation, ArrayList<MediaBucket> mediaBuckets, Object data, BulkOperation bulkOperation) {
         int numBuckets = mediaBuckets.size();
         ContentResolver cr = mContext.getContentResolver();
         switch (operation) {
         case MediaFeed.OPERATION_DELETE:
-            // TODO: Refactor this against LocalDataSource.performOperation.
-            for (int i = 0; i < numBuckets; ++i) {
+            for (int i = 0; i < numBuckets && !bulkOperation.isCanceled(); ++i) {
                 MediaBucket bucket = mediaBuckets.get(i);
                 MediaSet set = bucket.mediaSet;
                 ArrayList<MediaItem> items = bucket.mediaItems;
                 if (set != null && items == null) {
-                    // TODO bulk delete
                     // remove the entire bucket
-                    final Uri uriImages = Images.Media.EXTERNAL_CONTENT_URI;
-                    final Uri uriVideos = Video.Media.EXTERNAL_CONTENT_URI;
-                    final String whereImages = Images.ImageColumns.BUCKET_ID + "=" + Long.toString(set.mId);
-                    final String whereVideos = Video.VideoColumns.BUCKET_ID + "=" + Long.toString(set.mId);
-                    cr.delete(uriImages, whereImages, null);
-                    cr.delete(uriVideos, whereVideos, null);
+                    LocalDataSource.deleteSet(cr, set);
+                    bulkOperation.onItemsDone(Math.max(1, set.getNumExpectedItems()));
                 }
                 if (set != null && items != null) {
                     // We need to remove these items from the set.
-                    int numItems = items.size();
-                    for (int j = 0; j < numItems; ++j) {
-                        MediaItem item = items.get(j);
-                        cr.delete(Uri.parse(item.mContentUri), null, null);
-                    }
+                    LocalDataSource.deleteItems(cr, items, bulkOperation);
                     set.updateNumExpectedItems();
                     set.generateTitle(true);
                 }
             }
             break;
         case MediaFeed.OPERATION_ROTATE:
+            float angleToRotate = ((Float) data).floatValue();
+            if (angleToRotate == 0) {
+                return true;
+            }
+            ArrayList<MediaItem> fileItems = new ArrayList<MediaItem>();
             for (int i = 0; i < numBuckets; ++i) {
-                MediaBucket bucket = mediaBuckets.get(i);
-                ArrayList<MediaItem> items = bucket.mediaItems;
+                ArrayList<MediaItem> items = mediaBuckets.get(i).mediaItems;
                 if (items == null) {
                     continue;
                 }
-                float angleToRotate = ((Float) data).floatValue();
-                if (angleToRotate == 0) {
-                    return true;
-                }
                 int numItems = items.size();
                 for (int j = 0; j < numItems; ++j) {
-                    rotateItem(items.get(j), angleToRotate);
+                    MediaItem item = items.get(j);
+                    if ("file".equals(Uri.parse(item.mContentUri).getScheme())) {
+                        fileItems.add(item);
+                    } else {
+                        // Update the object representation of the item.
+                        item.mRotation = Shared.normalizePositive(item.mRotation + angleToRotate);
+                        bulkOperation.onItemsDone(1);
+                    }
                 }
             }
+            LocalDataSource.writeExifOrientations(fileItems, angleToRotate, bulkOperation);
             break;
         }
         return true;
     }
-
-    private void rotateItem(final MediaItem item, float angleToRotate) {
-        try {
-            int currentOrientation = (int) item.mRotation;
-            angleToRotate += currentOrientation;
-            float rotation = Shared.normalizePositive(angleToRotate);
-
-            // Update the file EXIF information.
-            Uri uri = Uri.parse(item.mContentUri);
-            String uriScheme = uri.getScheme();
-            if (uriScheme.equals("file")) {
-                ExifInterface exif = new ExifInterface(uri.getPath());
-                exif.setAttribute(ExifInterface.TAG_ORIENTATION, Integer.toString(Shared.degreesToExifOrientation(rotation)));
-                exif.saveAttributes();
-            }
-
-            // Update the object representation of the item.
-            item.mRotation = rotation;
-        } catch (Exception e) {
-        }
-    }
-
 }
@@ -35,27 +35,40 @@ public class SortCursor extends AbstractCursor {
     private Cursor mCursor; // updated in onMove
     private Cursor[] mCursors;
     private int[] mSortColumns;
-    private final int ROWCACHESIZE = 64;
-    private int mRowNumCache[] = new int[ROWCACHESIZE];
-    private int mCursorCache[] = new int[ROWCACHESIZE];
-    private int mCurRowNumCache[][];
-    private int mLastCacheHit = -1;
     private int mType;
     private boolean mAscending;
     public static final int TYPE_STRING = 0;
     public static final int TYPE_NUMERIC = 1;
 
+    // Sort keys of the current row of each cursor, read once per row.
+    private long[] mNumericKeys;
+    private String[] mStringKeys;
+    // Binary min-heap of the indices of the cursors that still have rows, so
+    // that the next row of the merge is always at the top. Each cursor is
+    // positioned on its first row not yet returned, except for the one at the
+    // top, which is positioned on the current row.
+    private int[] mHeap;
+    private int mHeapSize;
+    private boolean mHeapValid;
+    // Merge order of all rows, built on the first non-sequential move. Entry
+    // i holds row * numCursors + cursor index of the i-th row.
+    private int[] mMergeOrder;
+
     private DataSetObserver mObserver = new DataSetObserver() {
         @Override
         public void onChanged() {
             // Reset our position so the optimizations in move-related code
             // don't screw us over
             mPos = -1;
+            mHeapValid = false;
+            mMergeOrder = null;
         }
 
         @Override
         public void onInvalidated() {
             mPos = -1;
+            mHeapValid = false;
+            mMergeOrder = null;
         }
     };
     private int mCursorIndex;
@@ -72,43 +85,16 @@ public class SortCursor extends AbstractCursor {
             }
             // Register ourself as a data set observer
             mCursors[i].registerDataSetObserver(mObserver);
-            mCursors[i].moveToFirst();
             // We don't catch the exception.
             mSortColumns[i] = mCursors[i].getColumnIndexOrThrow(sortcolumn);
         }
-        mCursor = null;
         if (type == TYPE_STRING) {
-            String smallest = "";
-            for (int j = 0; j < length; j++) {
-                if (mCursors[j] == null || mCursors[j].isAfterLast())
-                    continue;
-                String current = mCursors[j].getString(mSortColumns[j]);
-                if (mCursor == null || current == null || current.compareToIgnoreCase(smallest) < 0) {
-                    smallest = current;
-                    mCursor = mCursors[j];
-                    mCursorIndex = j;
-                }
-            }
+            mStringKeys = new String[length];
         } else {
-            long smallest = (ascending) ? Long.MAX_VALUE : Long.MIN_VALUE;
-            for (int j = 0; j < length; j++) {
-                if (mCursors[j] == null || mCursors[j].isAfterLast()) {
-                    continue;
-                }
-                long current = mCursors[j].getLong(mSortColumns[j]);
-                boolean comparison = (ascending) ? (current < smallest) : (current > smallest);
-                if (mCursor == null || comparison) {
-                    smallest = current;
-                    mCursor = mCursors[j];
-                    mCursorIndex = j;
-                }
-            }
-        }
-
-        for (int i = mRowNumCache.length - 1; i >= 0; i--) {
-            mRowNumCache[i] = -2;
+            mNumericKeys = new long[length];
         }
-        mCurRowNumCache = new int[ROWCACHESIZE][length];
+        mHeap = new int[length];
+        resetMerge();
     }
 
     @Override
@@ -123,114 +109,174 @@ public class SortCursor extends AbstractCursor {
         return count;
     }
 
+    /**
+     * Precomputes the merge order of all rows so that every later move is a
+     * single moveToPosition on one of the cursors. This is done automatically
+     * on the first move that is not to the next row or back to the first.
+     */
+    public void buildMergeIndex() {
+        if (mMergeOrder != null) {
+            return;
+        }
+        final int count = getCount();
+        final int length = mCursors.length;
+        final int[] mergeOrder = new int[count];
+        resetMerge();
+        int numRows = 0;
+        while (mHeapSize > 0 && numRows < count) {
+            final int which = mHeap[0];
+            mergeOrder[numRows++] = mCursors[which].getPosition() * length + which;
+            advanceMerge();
+        }
+        // The cursors are no longer positioned on the merge frontier.
+        mHeapValid = false;
+        mMergeOrder = mergeOrder;
+    }
+
     @Override
     public boolean onMove(int oldPosition, int newPosition) {
         if (oldPosition == newPosition)
             return true;
 
-        /*
-         * Find the right cursor Because the client of this cursor (the
-         * listadapter/view) tends to jump around in the cursor somewhat, a
-         * simple cache strategy is used to avoid having to search all cursors
-         * from the start. TODO: investigate strategies for optimizing random
-         * access and reverse-order access.
-         */
-
-        int cache_entry = newPosition % ROWCACHESIZE;
-
-        if (mRowNumCache[cache_entry] == newPosition) {
-            int which = mCursorCache[cache_entry];
-            mCursor = mCursors[which];
-            mCursorIndex = which;
-            if (mCursor == null) {
-                Log.w(TAG, "onMove: cache results in a null cursor.");
-                return false;
+        final int[] mergeOrder = mMergeOrder;
+        if (mergeOrder == null) {
+            if (newPosition == 0) {
+                resetMerge();
+                return updateCurrentCursor();
             }
-            mCursor.moveToPosition(mCurRowNumCache[cache_entry][which]);
-            mLastCacheHit = cache_entry;
-            return true;
+            if (newPosition == oldPosition + 1 && mHeapValid) {
+                // Sequential iteration, the common case.
+                advanceMerge();
+                return updateCurrentCursor();
+            }
+            buildMergeIndex();
+        }
+        if (newPosition < 0 || newPosition >= mMergeOrder.length) {
+            return false;
         }
+        final int entry = mMergeOrder[newPosition];
+        final int length = mCursors.length;
+        final int which = entry % length;
+        mCursor = mCursors[which];
+        mCursorIndex = which;
+        if (mCursor == null) {
+            Log.w(TAG, "onMove: merge index results in a null cursor.");
+            return false;
+        }
+        return mCursor.moveToPosition(entry / length);
+    }
 
-        mCursor = null;
-        int length = mCursors.length;
+    private boolean updateCurrentCursor() {
+        if (mHeapSize == 0) {
+            mCursor = null;
+            return false;
+        }
+        final int which = mHeap[0];
+        mCursor = mCursors[which];
+        mCursorIndex = which;
+        return true;
+    }
 
-        if (mLastCacheHit >= 0) {
-            for (int i = 0; i < length; i++) {
-                if (mCursors[i] == null)
-                    continue;
-                mCursors[i].moveToPosition(mCurRowNumCache[mLastCacheHit][i]);
+    /**
+     * Moves every cursor to its first row and rebuilds the heap, leaving the
+     * first row of the merge at the top.
+     */
+    private void resetMerge() {
+        final Cursor[] cursors = mCursors;
+        final int length = cursors.length;
+        mHeapSize = 0;
+        for (int i = 0; i < length; i++) {
+            final Cursor cursor = cursors[i];
+            if (cursor == null) {
+                continue;
+            }
+            cursor.moveToFirst();
+            if (!cursor.isAfterLast()) {
+                readSortKey(i);
+                mHeap[mHeapSize++] = i;
             }
         }
+        for (int i = mHeapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        mHeapValid = true;
+        updateCurrentCursor();
+    }
 
-        if (newPosition < oldPosition || oldPosition == -1) {
-            for (int i = 0; i < length; i++) {
-                if (mCursors[i] == null)
-                    continue;
-                mCursors[i].moveToFirst();
-            }
-            oldPosition = 0;
+    /**
+     * Consumes the row at the top of the heap and restores the heap order.
+     */
+    private void advanceMerge() {
+        if (mHeapSize == 0) {
+            return;
         }
-        if (oldPosition < 0) {
-            oldPosition = 0;
+        final int which = mHeap[0];
+        final Cursor cursor = mCursors[which];
+        if (cursor.moveToNext()) {
+            readSortKey(which);
+        } else {
+            mHeap[0] = mHeap[--mHeapSize];
         }
+        siftDown(0);
+    }
 
-        // search forward to the new position
-        int smallestIdx = -1;
+    private void readSortKey(int which) {
+        final Cursor cursor = mCursors[which];
         if (mType == TYPE_STRING) {
-            for (int i = oldPosition; i <= newPosition; i++) {
-                String smallest = "";
-                smallestIdx = -1;
-                for (int j = 0; j < length; j++) {
-                    if (mCursors[j] == null || mCursors[j].isAfterLast()) {
-                        continue;
-                    }
-                    String current = mCursors[j].getString(mSortColumns[j]);
-                    if (smallestIdx < 0 || current == null || current.compareToIgnoreCase(smallest) < 0) {
-                        smallest = current;
-                        smallestIdx = j;
-                    }
-                }
-                if (i == newPosition) {
-                    break;
-                }
-                if (mCursors[smallestIdx] != null) {
-                    mCursors[smallestIdx].moveToNext();
-                }
-            }
+            mStringKeys[which] = cursor.getString(mSortColumns[which]);
         } else {
-            for (int i = oldPosition; i <= newPosition; i++) {
-                long smallest = (mAscending) ? Long.MAX_VALUE : Long.MIN_VALUE;
-                smallestIdx = -1;
-                for (int j = 0; j < length; j++) {
-                    if (mCursors[j] == null || mCursors[j].isAfterLast()) {
-                        continue;
-                    }
-                    long current = mCursors[j].getLong(mSortColumns[j]);
-                    boolean comparison = (mAscending) ? current < smallest : current > smallest;
-                    if (smallestIdx < 0 || comparison) {
-                        smallest = current;
-                        smallestIdx = j;
-                    }
-                }
-                if (i == newPosition) {
-                    break;
+            mNumericKeys[which] = cursor.getLong(mSortColumns[which]);
+        }
+    }
+
+    private void siftDown(int index) {
+        final int[] heap = mHeap;
+        final int heapSize = mHeapSize;
+        final int which = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && precedes(heap[child + 1], heap[child])) {
+                ++child;
+            }
+            if (!precedes(heap[child], which)) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = which;
+    }
+
+    /**
+     * Returns true if the current row of cursor a comes before that of cursor
+     * b. Strings sort ascending ignoring case with nulls first, and ties go to
+     * the cursor that was passed in first.
+     */
+    private boolean precedes(int a, int b) {
+        if (mType == TYPE_STRING) {
+            final String keyA = mStringKeys[a];
+            final String keyB = mStringKeys[b];
+            if (keyA == null || keyB == null) {
+                if (keyA != keyB) {
+                    return keyA == null;
                 }
-                if (mCursors[smallestIdx] != null) {
-                    mCursors[smallestIdx].moveToNext();
+            } else {
+                final int comparison = keyA.compareToIgnoreCase(keyB);
+                if (comparison != 0) {
+                    return comparison < 0;
                 }
             }
-        }
-        mCursor = mCursors[smallestIdx];
-        mCursorIndex = smallestIdx;
-        mRowNumCache[cache_entry] = newPosition;
-        mCursorCache[cache_entry] = smallestIdx;
-        for (int i = 0; i < length; i++) {
-            if (mCursors[i] != null) {
-                mCurRowNumCache[cache_entry][i] = mCursors[i].getPosition();
+        } else {
+            final long keyA = mNumericKeys[a];
+            final long keyB = mNumericKeys[b];
+            if (keyA != keyB) {
+                return (mAscending) ? keyA < keyB : keyA > keyB;
             }
         }
-        mLastCacheHit = -1;
-        return true;
+        return a < b;
     }
 
     @Override
@@ -341,7 +387,8 @@ public class SortCursor extends AbstractCursor {
                 return false;
             }
         }
-
+        mMergeOrder = null;
+        resetMerge();
         return true;
     }
 
@@ -0,0 +1,33 @@
+package com.cooliris.media;
+
+import java.util.HashMap;
+
+/**
+ * Canonicalizes low-cardinality strings such as MIME types. Cursors and
+ * streams return a fresh String for every row, so without pooling a large
+ * library holds one copy of "image/jpeg" per item.
+ */
+public final class StringPool {
+    // Values beyond this are not expected to repeat and are passed through.
+    private static final int MAX_SIZE = 256;
+    private static final HashMap<String, String> sPool = new HashMap<String, String>();
+
+    private StringPool() {
+    }
+
+    public static String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        synchronized (sPool) {
+            final String pooled = sPool.get(value);
+            if (pooled != null) {
+                return pooled;
+            }
+            if (sPool.size() < MAX_SIZE) {
+                sPool.put(value, value);
+            }
+        }
+        return value;
+    }
+}
@@ -1,5 +1,8 @@
 package com.cooliris.media;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -21,6 +24,18 @@ public final class StringTexture extends Texture {
 
     private static final Paint sPaint = new Paint();
 
+    private static final float MIN_FIT_TEXT_SIZE = 6.0f;
+    private static final int MAX_FIT_CACHE_SIZE = 256;
+    // Text sizes computed for SIZE_TEXT_TO_BOUNDS, least recently used first.
+    private static final LinkedHashMap<FitKey, Float> sFitCache = new LinkedHashMap<FitKey, Float>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FitKey, Float> eldest) {
+            return size() > MAX_FIT_CACHE_SIZE;
+        }
+    };
+
     public static int computeTextWidthForConfig(String string, Config config) {
         return computeTextWidthForConfig(config.fontSize, config.bold ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT, string);
     }
@@ -124,23 +139,60 @@ public final class StringTexture extends Texture {
             paint.setTextSkewX(-0.25f);
         String stringToDraw = mString;
         paint.setTextSize(config.fontSize);
-        if (config.sizeMode == Config.SIZE_TEXT_TO_BOUNDS) {
+        if (config.sizeMode == Config.SIZE_TEXT_TO_BOUNDS && stringToDraw != null) {
             // we have to compute the fontsize appropriately
-            while (true) {
-                // we measure the textwidth
-                float currentTextSize = paint.getTextSize();
-                float measuredTextWidth = 0;
-                measuredTextWidth = paint.measureText(stringToDraw);
-                if (measuredTextWidth < mWidth)
-                    break;
-                paint.setTextSize(currentTextSize - 1.0f);
-                if (currentTextSize <= 6.0f)
-                    break;
-            }
+            paint.setTextSize(computeFittingTextSize(paint, stringToDraw, mWidth, config));
         }
         return paint;
     }
 
+    /**
+     * Returns the largest of fontSize, fontSize - 1, ... at which the string
+     * is narrower than the width, going no lower than one step below
+     * MIN_FIT_TEXT_SIZE. The width of the text grows with its size, so the
+     * steps are binary searched. Results are remembered per string, width and
+     * config since labels are recreated for the same strings.
+     */
+    private static float computeFittingTextSize(Paint paint, String string, int width, Config config) {
+        final FitKey key = new FitKey(string, width, config);
+        synchronized (sFitCache) {
+            final Float cachedSize = sFitCache.get(key);
+            if (cachedSize != null) {
+                return cachedSize;
+            }
+        }
+        final float fontSize = config.fontSize;
+        final int maxSteps = Math.max(0, (int) FloatMath.ceil(fontSize - MIN_FIT_TEXT_SIZE));
+        float size;
+        if (fits(paint, string, width, fontSize)) {
+            size = fontSize;
+        } else if (!fits(paint, string, width, fontSize - maxSteps)) {
+            size = fontSize - maxSteps - 1.0f;
+        } else {
+            // The string does not fit at low steps and fits at high steps.
+            int low = 0;
+            int high = maxSteps;
+            while (high - low > 1) {
+                final int mid = (low + high) >>> 1;
+                if (fits(paint, string, width, fontSize - mid)) {
+                    high = mid;
+                } else {
+                    low = mid;
+                }
+            }
+            size = fontSize - high;
+        }
+        synchronized (sFitCache) {
+            sFitCache.put(key, size);
+        }
+        return size;
+    }
+
+    private static boolean fits(Paint paint, String string, int width, float textSize) {
+        paint.setTextSize(textSize);
+        return paint.measureText(string) < width;
+    }
+
     @Override
     protected Bitmap load(RenderView view) {
         if (mString == null)
@@ -197,6 +249,32 @@ public final class StringTexture extends Texture {
         return bitmap;
     }
 
+    private static final class FitKey {
+        private final String mString;
+        private final int mWidth;
+        private final Config mConfig;
+
+        public FitKey(String string, int width, Config config) {
+            mString = string;
+            mWidth = width;
+            mConfig = config;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof FitKey)) {
+                return false;
+            }
+            final FitKey key = (FitKey) object;
+            return mConfig == key.mConfig && mWidth == key.mWidth && mString.equals(key.mString);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mString.hashCode() * 31 + mWidth) * 31 + System.identityHashCode(mConfig);
+        }
+    }
+
     public static final class Config {
         public static final int SIZE_EXACT = 0;
         public static final int SIZE_TEXT_TO_BOUNDS = 1;
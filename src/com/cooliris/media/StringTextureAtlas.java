@@ -0,0 +1,293 @@
+package com.cooliris.media;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.microedition.khronos.opengles.GL11;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.opengl.GLUtils;
+
+/**
+ * Packs the caption and location labels of the grid into a few shared texture
+ * pages. Every label is rendered into a fixed-size cell, so the atlas never
+ * holds more than MAX_BYTES of label pixels: once all cells are taken, the
+ * least recently drawn label gives up its cell. Labels are looked up by string
+ * and config, and drawn with the texture matrix mapping the quad onto the cell
+ * of their page. The atlas is only used on the GL thread, except for clear(),
+ * which may be called from any thread.
+ */
+public final class StringTextureAtlas {
+    private static final int PAGE_SIZE = 512;
+    // Pages are ARGB_4444, 2 bytes per pixel.
+    private static final int PAGE_BYTES = PAGE_SIZE * PAGE_SIZE * 2;
+    private static final int MAX_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PAGES = MAX_BYTES / PAGE_BYTES;
+
+    private final int mCellWidth;
+    private final int mCellHeight;
+    private final int mCellsPerRow;
+    private final int mCellsPerPage;
+    private final Page[] mPages = new Page[MAX_PAGES];
+    private int mNumPages;
+    // Cells of the allocated pages not holding any label.
+    private final int[] mFreeCells;
+    private int mNumFreeCells;
+    // Labels in least recently drawn order.
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+    private final Key mLookupKey = new Key();
+    private int mFrame;
+    private volatile boolean mClearRequested;
+
+    public StringTextureAtlas(int cellWidth, int cellHeight) {
+        mCellWidth = cellWidth;
+        mCellHeight = cellHeight;
+        mCellsPerRow = PAGE_SIZE / cellWidth;
+        mCellsPerPage = mCellsPerRow * (PAGE_SIZE / cellHeight);
+        mFreeCells = new int[mCellsPerPage * MAX_PAGES];
+    }
+
+    /**
+     * Starts a new frame. Labels drawn during the frame keep their cells until
+     * the next one.
+     */
+    public void beginFrame() {
+        if (mClearRequested) {
+            mClearRequested = false;
+            clearNow();
+        }
+        ++mFrame;
+    }
+
+    /**
+     * Returns the label of the string in the given config, claiming a cell for
+     * it if it is not in the atlas. Returns null if every cell is taken by a
+     * label drawn in this frame.
+     */
+    public Entry get(String string, StringTexture.Config config) {
+        final Key lookupKey = mLookupKey;
+        lookupKey.set(string, config);
+        Entry entry = mEntries.get(lookupKey);
+        if (entry != null) {
+            return entry;
+        }
+        final int cell = allocateCell();
+        if (cell == -1) {
+            return null;
+        }
+        final Key key = new Key();
+        key.set(string, config);
+        entry = new Entry(key, new StringTexture(string, config, mCellWidth, mCellHeight), mPages[cell / mCellsPerPage]);
+        final int cellInPage = cell % mCellsPerPage;
+        entry.mCell = cell;
+        entry.mX = (cellInPage % mCellsPerRow) * mCellWidth;
+        entry.mY = (cellInPage / mCellsPerRow) * mCellHeight;
+        mEntries.put(key, entry);
+        return entry;
+    }
+
+    private int allocateCell() {
+        if (mNumFreeCells == 0) {
+            if (mNumPages < MAX_PAGES) {
+                final int firstCell = mNumPages * mCellsPerPage;
+                mPages[mNumPages++] = new Page();
+                for (int i = mCellsPerPage - 1; i >= 0; --i) {
+                    mFreeCells[mNumFreeCells++] = firstCell + i;
+                }
+            } else {
+                final Iterator<Entry> iter = mEntries.values().iterator();
+                final Entry eldest = iter.next();
+                if (eldest.mLastUsedFrame == mFrame) {
+                    return -1;
+                }
+                iter.remove();
+                eldest.mValid = false;
+                return eldest.mCell;
+            }
+        }
+        return mFreeCells[--mNumFreeCells];
+    }
+
+    /**
+     * Marks the label as drawn in this frame and uploads it to its page if
+     * needed. Returns true if the label can be drawn.
+     */
+    public boolean load(RenderView view, GL11 gl, Entry entry) {
+        if (!entry.mValid) {
+            return false;
+        }
+        // Moves the label to the most recently drawn end of the map.
+        mEntries.get(entry.mKey);
+        entry.mLastUsedFrame = mFrame;
+        final Page page = entry.mPage;
+        if (!page.isLoaded()) {
+            if (page.getState() != Texture.STATE_UNLOADED) {
+                return false;
+            }
+            view.loadTexture(page);
+            if (!page.isLoaded()) {
+                return false;
+            }
+            // The new texture of the page holds none of its labels.
+            for (Entry pageEntry : mEntries.values()) {
+                if (pageEntry.mPage == page) {
+                    pageEntry.mUploaded = false;
+                }
+            }
+        }
+        if (!entry.mUploaded) {
+            final Bitmap bitmap = renderCell(view, entry.mTexture);
+            if (!view.bind(page)) {
+                bitmap.recycle();
+                return false;
+            }
+            GLUtils.texSubImage2D(GL11.GL_TEXTURE_2D, 0, entry.mX, entry.mY, bitmap);
+            bitmap.recycle();
+            entry.mUploaded = true;
+        }
+        return true;
+    }
+
+    private Bitmap renderCell(RenderView view, StringTexture texture) {
+        Bitmap bitmap = texture.load(view);
+        if (bitmap == null || bitmap.getWidth() != mCellWidth || bitmap.getHeight() != mCellHeight) {
+            // Clear whatever the previous label left in the cell.
+            final Bitmap cell = Bitmap.createBitmap(mCellWidth, mCellHeight, Bitmap.Config.ARGB_4444);
+            if (bitmap != null) {
+                final Canvas canvas = new Canvas(cell);
+                canvas.drawBitmap(bitmap, 0, 0, null);
+                bitmap.recycle();
+            }
+            bitmap = cell;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Maps texture coordinates in [0, 1] onto the cell of the label.
+     */
+    public static void setTextureMatrix(GL11 gl, Entry entry) {
+        gl.glMatrixMode(GL11.GL_TEXTURE);
+        gl.glLoadIdentity();
+        gl.glTranslatef(entry.getU(), entry.getV(), 0.0f);
+        gl.glScalef(entry.getUExtent(), entry.getVExtent(), 1.0f);
+        gl.glMatrixMode(GL11.GL_MODELVIEW);
+    }
+
+    public static void resetTextureMatrix(GL11 gl) {
+        gl.glMatrixMode(GL11.GL_TEXTURE);
+        gl.glLoadIdentity();
+        gl.glMatrixMode(GL11.GL_MODELVIEW);
+    }
+
+    /**
+     * Drops every label and page at the start of the next frame, so that the
+     * GL thread never sees the atlas half cleared. The textures of the pages
+     * are released once they are no longer referenced.
+     */
+    public void clear() {
+        mClearRequested = true;
+    }
+
+    private void clearNow() {
+        for (Entry entry : mEntries.values()) {
+            entry.mValid = false;
+        }
+        mEntries.clear();
+        for (int i = 0; i < mNumPages; ++i) {
+            mPages[i] = null;
+        }
+        mNumPages = 0;
+        mNumFreeCells = 0;
+    }
+
+    /**
+     * A label in the atlas. Labels whose cell was reclaimed become invalid and
+     * have to be looked up again.
+     */
+    public static final class Entry {
+        private final Key mKey;
+        private final StringTexture mTexture;
+        private final Page mPage;
+        private int mCell;
+        private int mX;
+        private int mY;
+        private boolean mValid = true;
+        private boolean mUploaded;
+        private int mLastUsedFrame = -1;
+
+        private Entry(Key key, StringTexture texture, Page page) {
+            mKey = key;
+            mTexture = texture;
+            mPage = page;
+        }
+
+        public boolean isValid() {
+            return mValid;
+        }
+
+        /** Returns the page to bind when drawing the label. */
+        public Texture getTexture() {
+            return mPage;
+        }
+
+        public float computeTextWidth() {
+            return mTexture.computeTextWidth();
+        }
+
+        // Inset by half a texel so that filtering does not reach the cells
+        // around.
+        public float getU() {
+            return (mX + 0.5f) / PAGE_SIZE;
+        }
+
+        public float getV() {
+            return (mY + 0.5f) / PAGE_SIZE;
+        }
+
+        public float getUExtent() {
+            return (mTexture.getWidth() - 1.0f) / PAGE_SIZE;
+        }
+
+        public float getVExtent() {
+            return (mTexture.getHeight() - 1.0f) / PAGE_SIZE;
+        }
+    }
+
+    private static final class Key {
+        private String mString;
+        private StringTexture.Config mConfig;
+
+        public void set(String string, StringTexture.Config config) {
+            mString = string;
+            mConfig = config;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) object;
+            return mConfig == key.mConfig && mString.equals(key.mString);
+        }
+
+        @Override
+        public int hashCode() {
+            return mString.hashCode() * 31 + System.identityHashCode(mConfig);
+        }
+    }
+
+    private static final class Page extends Texture {
+        @Override
+        public boolean isCached() {
+            return true;
+        }
+
+        @Override
+        protected Bitmap load(RenderView view) {
+            return Bitmap.createBitmap(PAGE_SIZE, PAGE_SIZE, Bitmap.Config.ARGB_4444);
+        }
+    }
+}
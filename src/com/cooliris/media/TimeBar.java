@@ -1,9 +1,8 @@
 package com.cooliris.media;
 
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.TimeZone;
 
 import javax.microedition.khronos.opengles.GL11;
 
@@ -26,6 +25,7 @@ public final class TimeBar extends Layer implements MediaFeed.Listener {
     private static final int MARKER_SPACING_PIXELS = 50;
     private static final float AUTO_SCROLL_MARGIN = 100f;
     private static final Paint SRC_PAINT = new Paint();
+    private static final long MS_PER_DAY = 24 * 60 * 60 * 1000L;
     private Listener mListener = null;
     private MediaFeed mFeed = null;
     private float mTotalWidth = 0f;
@@ -58,6 +58,20 @@ public final class TimeBar extends Layer implements MediaFeed.Listener {
     private Rect mBackgroundRect;
     private BitmapTexture mBackgroundTexture;
 
+    // Where the last layout stopped before reaching the last item, so that
+    // items appended to the same set are laid out from there.
+    private MediaSet mLayoutSet;
+    private int mLayoutIncrement;
+    private int mLayoutNumItems;
+    private MediaItem mLayoutFirstItem;
+    private MediaItem mLayoutResumeItem;
+    private int mResumeIndex;
+    private int mResumeNumMarkers;
+    private int mResumeYear;
+    private int mResumeMonth;
+    private int mResumeDayBlock;
+    private float mResumeX;
+
     public interface Listener {
         public void onTimeChanged(TimeBar timebar);
     }
@@ -167,11 +181,6 @@ public final class TimeBar extends Layer implements MediaFeed.Listener {
 
     private void layout() {
         if (mFeed != null) {
-            // Clear existing markers.
-            mTracker.clear();
-            synchronized (mMarkers) {
-                mMarkers.clear();
-            }
             float scrollX = mScroll;
             // Place markers for every time interval that intersects one of the
             // clusters.
@@ -210,18 +219,44 @@ public final class TimeBar extends Layer implements MediaFeed.Listener {
                     }
                 }
             }
-            if (set != null) {
-                GregorianCalendar time = new GregorianCalendar();
-                ArrayList<MediaItem> items = set.getItems();
-                if (items != null) {
-                    int j = 0;
-                    while (j < set.getNumItems()) {
-                        final MediaItem item = items.get(j);
-                        if (item == null)
-                            continue;
-                        time.setTimeInMillis(item.mDateTakenInMs);
+            ArrayList<MediaItem> items = (set != null) ? set.getItems() : null;
+            int j = 0;
+            if (items != null && canResumeLayout(set, items, increment)) {
+                // Items were only appended since the last layout: drop the
+                // markers placed after its last complete step and go on from
+                // there.
+                synchronized (mMarkers) {
+                    final ArrayList<Marker> markers = mMarkers;
+                    for (int i = markers.size() - 1; i >= mResumeNumMarkers; --i) {
+                        markers.remove(i);
+                    }
+                }
+                j = mResumeIndex;
+                lastYear = mResumeYear;
+                lastMonth = mResumeMonth;
+                lastDayBlock = mResumeDayBlock;
+                dx = mResumeX;
+            } else {
+                // Clear existing markers.
+                mTracker.clear();
+                synchronized (mMarkers) {
+                    mMarkers.clear();
+                }
+                mLayoutSet = set;
+                mLayoutIncrement = increment;
+                mResumeIndex = 0;
+            }
+            if (items != null) {
+                final TimeZone timeZone = TimeZone.getDefault();
+                final int numItems = items.size();
+                mLayoutNumItems = numItems;
+                mLayoutFirstItem = (numItems > 0) ? items.get(0) : null;
+                while (j < numItems) {
+                    final MediaItem item = items.get(j);
+                    if (item != null) {
+                        final int date = getLocalDate(item.mDateTakenInMs, timeZone);
                         // Detect year rollovers.
-                        final int year = time.get(Calendar.YEAR);
+                        final int year = date >> 9;
                         if (year != lastYear) {
                             lastYear = year;
                             lastMonth = -1;
@@ -229,41 +264,53 @@ public final class TimeBar extends Layer implements MediaFeed.Listener {
                         }
                         Marker marker = null;
                         // Detect month rollovers and emit a month marker.
-                        final int month = time.get(Calendar.MONTH);
-                        final int dayBlock = time.get(Calendar.DATE);
+                        final int month = (date >> 5) & 0xf;
+                        final int dayBlock = date & 0x1f;
                         if (month != lastMonth) {
                             lastMonth = month;
                             lastDayBlock = -1;
-                            marker = new Marker(dx, time.getTimeInMillis(), year, month, dayBlock, Marker.TYPE_MONTH, increment);
+                            marker = new Marker(dx, item.mDateTakenInMs, year, month, dayBlock, Marker.TYPE_MONTH, increment);
                             dx = addMarker(marker);
                         } else if (dayBlock != lastDayBlock) {
                             lastDayBlock = dayBlock;
                             if (dayBlock != 0) {
-                                marker = new Marker(dx, time.getTimeInMillis(), year, month, dayBlock, Marker.TYPE_DAY, increment);
+                                marker = new Marker(dx, item.mDateTakenInMs, year, month, dayBlock, Marker.TYPE_DAY, increment);
                                 dx = addMarker(marker);
                             }
                         } else {
-                            marker = new Marker(dx, time.getTimeInMillis(), year, month, dayBlock, Marker.TYPE_DOT, increment);
+                            marker = new Marker(dx, item.mDateTakenInMs, year, month, dayBlock, Marker.TYPE_DOT, increment);
                             dx = addMarker(marker);
                         }
                         for (int k = 0; k < increment; ++k) {
                             int index = k + j;
                             if (index < 0)
                                 continue;
-                            if (index >= items.size())
+                            if (index >= numItems)
                                 break;
-                            if (index == items.size() - 1 && k != 0)
+                            if (index == numItems - 1 && k != 0)
                                 break;
                             MediaItem thisItem = items.get(index);
                             marker.items.add(thisItem);
                             mTracker.put(thisItem, marker);
                         }
-                        if (j == items.size() - 1)
-                            break;
-                        j += increment;
-                        if (j >= items.size() - 1)
-                            j = items.size() - 1;
                     }
+                    if (j == numItems - 1)
+                        break;
+                    final boolean complete = j + increment < numItems;
+                    j += increment;
+                    if (complete) {
+                        // This step stopped short of the last item, so
+                        // appending items leaves it as it is.
+                        mResumeIndex = j;
+                        mResumeNumMarkers = mMarkers.size();
+                        mResumeYear = lastYear;
+                        mResumeMonth = lastMonth;
+                        mResumeDayBlock = lastDayBlock;
+                        mResumeX = dx;
+                        mLayoutResumeItem = items.get(j - 1);
+                    }
+                    if (j >= numItems - 1)
+                        j = numItems - 1;
                 }
                 mTotalWidth = dx - MARKER_SPACING_PIXELS * Gallery.PIXEL_DENSITY;
             }
@@ -280,6 +327,41 @@ public final class TimeBar extends Layer implements MediaFeed.Listener {
         }
     }
 
+    /**
+     * Returns true if the set laid out last has only had items appended since.
+     */
+    private boolean canResumeLayout(MediaSet set, ArrayList<MediaItem> items, int increment) {
+        final int resumeIndex = mResumeIndex;
+        return set == mLayoutSet && increment == mLayoutIncrement && resumeIndex > 0 && items.size() >= mLayoutNumItems
+                && items.get(0) == mLayoutFirstItem && items.get(resumeIndex - 1) == mLayoutResumeItem;
+    }
+
+    /**
+     * Returns the local date of the given time packed as (year << 9) | (month
+     * << 5) | day, with the month counted from 0 like Calendar.MONTH. The date
+     * is derived from the day number with integer arithmetic so that no
+     * Calendar is needed per item.
+     */
+    private static int getLocalDate(long timeInMs, TimeZone timeZone) {
+        final long localTime = timeInMs + timeZone.getOffset(timeInMs);
+        long days = localTime / MS_PER_DAY;
+        if (localTime % MS_PER_DAY < 0) {
+            --days;
+        }
+        // Count days from 0000-03-01, so that leap days end each year, in eras
+        // of 400 years.
+        days += 719468;
+        final long era = ((days >= 0) ? days : days - 146096) / 146097;
+        final int dayOfEra = (int) (days - era * 146097);
+        final int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final int monthFromMarch = (5 * dayOfYear + 2) / 153;
+        final int day = dayOfYear - (153 * monthFromMarch + 2) / 5 + 1;
+        final int month = (monthFromMarch < 10) ? monthFromMarch + 2 : monthFromMarch - 10;
+        final int year = (int) (era * 400) + yearOfEra + ((month <= 1) ? 1 : 0);
+        return (year << 9) | (month << 5) | day;
+    }
+
     private float addMarker(Marker marker) {
         mMarkers.add(marker);
         return marker.x + MARKER_SPACING_PIXELS * Gallery.PIXEL_DENSITY;
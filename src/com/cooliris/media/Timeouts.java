@@ -0,0 +1,66 @@
+package com.cooliris.media;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentResolver;
+import android.graphics.BitmapFactory;
+import android.provider.MediaStore;
+
+/**
+ * Cancels decodes and thumbnail requests that run past their deadline. All
+ * deadlines are armed on a single thread; callers disarm them with
+ * ScheduledFuture.cancel() once the work is done, so that a finished request
+ * is never cancelled late.
+ */
+public final class Timeouts {
+    private static final ScheduledThreadPoolExecutor sExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "Timeouts");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final AtomicInteger sNumTimeouts = new AtomicInteger();
+
+    private Timeouts() {
+    }
+
+    /**
+     * Cancels the decode using the given options after delay ms.
+     */
+    public static ScheduledFuture<?> cancelDecodeAfter(final BitmapFactory.Options options, long delay) {
+        return sExecutor.schedule(new Runnable() {
+            public void run() {
+                sNumTimeouts.incrementAndGet();
+                options.requestCancelDecode();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the thumbnail request of the given video after delay ms.
+     */
+    public static ScheduledFuture<?> cancelVideoThumbnailAfter(final ContentResolver cr, final long id, long delay) {
+        return sExecutor.schedule(new Runnable() {
+            public void run() {
+                sNumTimeouts.incrementAndGet();
+                try {
+                    MediaStore.Video.Thumbnails.cancelThumbnailRequest(cr, id);
+                } catch (Exception e) {
+                    ;
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of deadlines that expired before being disarmed.
+     */
+    public static int getNumTimeouts() {
+        return sNumTimeouts.get();
+    }
+}
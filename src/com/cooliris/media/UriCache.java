@@ -0,0 +1,346 @@
+package com.cooliris.media;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * In-memory index over the loose image files of the hires-image-cache. Each
+ * entry records the size, last access time and HTTP validators (ETag and
+ * Last-Modified) of one file, so that existence checks never touch the
+ * filesystem, remote entries can be revalidated with conditional requests and
+ * the total size on disk stays within a fixed budget by evicting the least
+ * recently used files.
+ */
+public final class UriCache {
+    private static final String TAG = "UriCache";
+    private static final int INDEX_HEADER_MAGIC = 0xcafd;
+    private static final int INDEX_HEADER_VERSION = 1;
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String FILE_SUFFIX = ".cache";
+    private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    private static final long REVALIDATE_INTERVAL = 24 * 60 * 60 * 1000L; // ms.
+    private static final int FLUSH_INTERVAL = 64;
+
+    private final String mFilePrefix;
+    private final long mMaxBytes;
+    private final LongSparseArray<Record> mIndexMap = new LongSparseArray<Record>();
+    private long mTotalBytes = 0;
+    private int mNumChanges = 0;
+
+    public UriCache(String filePrefix) {
+        this(filePrefix, DEFAULT_MAX_BYTES);
+    }
+
+    public UriCache(String filePrefix, long maxBytes) {
+        mFilePrefix = filePrefix;
+        mMaxBytes = maxBytes;
+        if (!loadIndex()) {
+            rebuildIndex();
+        }
+    }
+
+    public String getFilePath(long crc64, int maxResolution) {
+        return mFilePrefix + crc64 + "_" + maxResolution + FILE_SUFFIX;
+    }
+
+    public boolean contains(long crc64, int maxResolution) {
+        synchronized (mIndexMap) {
+            return mIndexMap.get(key(crc64, maxResolution)) != null;
+        }
+    }
+
+    /**
+     * Returns true if the entry carries HTTP validators and has not been
+     * revalidated against the server recently.
+     */
+    public boolean needsRevalidation(long crc64, int maxResolution) {
+        synchronized (mIndexMap) {
+            final Record record = mIndexMap.get(key(crc64, maxResolution));
+            if (record == null || (record.etag == null && record.lastModified == null)) {
+                return false;
+            }
+            return System.currentTimeMillis() - record.lastValidated > REVALIDATE_INTERVAL;
+        }
+    }
+
+    public String getEtag(long crc64, int maxResolution) {
+        synchronized (mIndexMap) {
+            final Record record = mIndexMap.get(key(crc64, maxResolution));
+            return (record == null) ? null : record.etag;
+        }
+    }
+
+    public String getLastModified(long crc64, int maxResolution) {
+        synchronized (mIndexMap) {
+            final Record record = mIndexMap.get(key(crc64, maxResolution));
+            return (record == null) ? null : record.lastModified;
+        }
+    }
+
+    public void touch(long crc64, int maxResolution) {
+        synchronized (mIndexMap) {
+            final Record record = mIndexMap.get(key(crc64, maxResolution));
+            if (record != null) {
+                record.lastAccess = System.currentTimeMillis();
+                // Written out with the next flush, so that eviction after a
+                // restart still sees the access order.
+                ++mNumChanges;
+            }
+        }
+    }
+
+    public void markValidated(long crc64, int maxResolution) {
+        synchronized (mIndexMap) {
+            final Record record = mIndexMap.get(key(crc64, maxResolution));
+            if (record != null) {
+                final long now = System.currentTimeMillis();
+                record.lastAccess = now;
+                record.lastValidated = now;
+                ++mNumChanges;
+            }
+        }
+    }
+
+    /**
+     * Records a file that has just been written to
+     * {@link #getFilePath(long, int)} and evicts older entries if the cache is
+     * over budget.
+     */
+    public void put(long crc64, int maxResolution, long size, String etag, String lastModified) {
+        final long now = System.currentTimeMillis();
+        final Record record = new Record(crc64, maxResolution, size, now, now, etag, lastModified);
+        synchronized (mIndexMap) {
+            final long key = key(crc64, maxResolution);
+            final Record oldRecord = mIndexMap.get(key);
+            if (oldRecord != null) {
+                mTotalBytes -= oldRecord.size;
+            }
+            mIndexMap.put(key, record);
+            mTotalBytes += size;
+            ++mNumChanges;
+            if (mTotalBytes > mMaxBytes) {
+                evict();
+            }
+        }
+        if (mNumChanges >= FLUSH_INTERVAL) {
+            flush();
+        }
+    }
+
+    public void delete(long crc64, int maxResolution) {
+        synchronized (mIndexMap) {
+            final long key = key(crc64, maxResolution);
+            final Record record = mIndexMap.get(key);
+            if (record != null) {
+                mIndexMap.remove(key);
+                mTotalBytes -= record.size;
+                ++mNumChanges;
+            }
+        }
+        new File(getFilePath(crc64, maxResolution)).delete();
+    }
+
+    public void flush() {
+        synchronized (mIndexMap) {
+            if (mNumChanges == 0) {
+                return;
+            }
+            mNumChanges = 0;
+        }
+        writeIndex();
+    }
+
+    private static long key(long crc64, int maxResolution) {
+        return crc64 * 31 + maxResolution;
+    }
+
+    private void evict() {
+        // Called with the index lock held. Drop the least recently used entries
+        // until we are comfortably under budget to amortize the sort.
+        final int numRecords = mIndexMap.size();
+        final Record[] records = new Record[numRecords];
+        for (int i = 0; i < numRecords; ++i) {
+            records[i] = mIndexMap.valueAt(i);
+        }
+        Arrays.sort(records);
+        final long target = mMaxBytes - mMaxBytes / 4;
+        for (int i = 0; i < numRecords && mTotalBytes > target; ++i) {
+            final Record record = records[i];
+            mIndexMap.remove(key(record.crc64, record.maxResolution));
+            mTotalBytes -= record.size;
+            new File(getFilePath(record.crc64, record.maxResolution)).delete();
+        }
+        ++mNumChanges;
+    }
+
+    private String getIndexFilePath() {
+        return mFilePrefix + INDEX_FILE_NAME;
+    }
+
+    private boolean loadIndex() {
+        final String indexFilePath = getIndexFilePath();
+        try {
+            // Open the input stream.
+            final FileInputStream fileInput = new FileInputStream(indexFilePath);
+            final BufferedInputStream bufferedInput = new BufferedInputStream(fileInput, 1024);
+            final DataInputStream dataInput = new DataInputStream(bufferedInput);
+            try {
+                // Read the header.
+                final int magic = dataInput.readInt();
+                final int version = dataInput.readInt();
+                if (magic != INDEX_HEADER_MAGIC || version != INDEX_HEADER_VERSION) {
+                    Log.e(TAG, "Index file " + indexFilePath + " is corrupt or has an unsupported version");
+                    return false;
+                }
+
+                // Read the entries.
+                final int numEntries = dataInput.readInt();
+                synchronized (mIndexMap) {
+                    for (int i = 0; i < numEntries; ++i) {
+                        final long crc64 = dataInput.readLong();
+                        final int maxResolution = dataInput.readInt();
+                        final long size = dataInput.readLong();
+                        final long lastAccess = dataInput.readLong();
+                        final long lastValidated = dataInput.readLong();
+                        final String etag = readString(dataInput);
+                        final String lastModified = readString(dataInput);
+                        mIndexMap.put(key(crc64, maxResolution), new Record(crc64, maxResolution, size, lastAccess,
+                                lastValidated, etag, lastModified));
+                        mTotalBytes += size;
+                    }
+                }
+                return true;
+            } finally {
+                dataInput.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Either the cache is empty or it predates the index.
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the index file " + indexFilePath);
+        }
+        synchronized (mIndexMap) {
+            mIndexMap.clear();
+            mTotalBytes = 0;
+        }
+        return false;
+    }
+
+    private void rebuildIndex() {
+        // Adopt any cache files written before the index existed. This is the
+        // only path that lists the directory and runs at most once.
+        final File prefixFile = new File(mFilePrefix);
+        final File directory = prefixFile.getParentFile();
+        final String namePrefix = prefixFile.getName();
+        final String[] names = (directory == null) ? null : directory.list();
+        if (names == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (mIndexMap) {
+            for (String name : names) {
+                if (!name.startsWith(namePrefix) || !name.endsWith(FILE_SUFFIX)) {
+                    continue;
+                }
+                final String body = name.substring(namePrefix.length(), name.length() - FILE_SUFFIX.length());
+                final int separator = body.lastIndexOf('_');
+                if (separator <= 0) {
+                    continue;
+                }
+                try {
+                    final long crc64 = Long.parseLong(body.substring(0, separator));
+                    final int maxResolution = Integer.parseInt(body.substring(separator + 1));
+                    final long size = new File(directory, name).length();
+                    mIndexMap.put(key(crc64, maxResolution), new Record(crc64, maxResolution, size, now, now, null, null));
+                    mTotalBytes += size;
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+            ++mNumChanges;
+        }
+        flush();
+    }
+
+    private void writeIndex() {
+        final String indexFilePath = getIndexFilePath();
+        try {
+            // Create a temporary file to write the index into.
+            final File tempFile = new File(indexFilePath + ".tmp");
+            final FileOutputStream fileOutput = new FileOutputStream(tempFile);
+            final BufferedOutputStream bufferedOutput = new BufferedOutputStream(fileOutput, 1024);
+            final DataOutputStream dataOutput = new DataOutputStream(bufferedOutput);
+
+            synchronized (mIndexMap) {
+                // Write the index header.
+                final int numRecords = mIndexMap.size();
+                dataOutput.writeInt(INDEX_HEADER_MAGIC);
+                dataOutput.writeInt(INDEX_HEADER_VERSION);
+                dataOutput.writeInt(numRecords);
+
+                // Write the records.
+                for (int i = 0; i < numRecords; ++i) {
+                    final Record record = mIndexMap.valueAt(i);
+                    dataOutput.writeLong(record.crc64);
+                    dataOutput.writeInt(record.maxResolution);
+                    dataOutput.writeLong(record.size);
+                    dataOutput.writeLong(record.lastAccess);
+                    dataOutput.writeLong(record.lastValidated);
+                    writeString(dataOutput, record.etag);
+                    writeString(dataOutput, record.lastModified);
+                }
+            }
+
+            // Close the file and atomically overwrite the old index file.
+            dataOutput.close();
+            tempFile.renameTo(new File(indexFilePath));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the index file " + indexFilePath);
+        }
+    }
+
+    private static String readString(DataInputStream dataInput) throws IOException {
+        return dataInput.readBoolean() ? dataInput.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream dataOutput, String value) throws IOException {
+        dataOutput.writeBoolean(value != null);
+        if (value != null) {
+            dataOutput.writeUTF(value);
+        }
+    }
+
+    private static final class Record implements Comparable<Record> {
+        public Record(long crc64, int maxResolution, long size, long lastAccess, long lastValidated, String etag,
+                String lastModified) {
+            this.crc64 = crc64;
+            this.maxResolution = maxResolution;
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.lastValidated = lastValidated;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public int compareTo(Record other) {
+            return (lastAccess < other.lastAccess) ? -1 : ((lastAccess == other.lastAccess) ? 0 : 1);
+        }
+
+        public final long crc64;
+        public final int maxResolution;
+        public final long size;
+        public final String etag;
+        public final String lastModified;
+        public long lastAccess;
+        public long lastValidated;
+    }
+}
@@ -3,8 +3,6 @@ package com.cooliris.media;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -12,18 +10,25 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.*;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
@@ -48,30 +53,52 @@ public class UriTexture extends Texture {
     public static final String URI_CACHE = CacheService.getCachePath("hires-image-cache");
     private static final String USER_AGENT = "Cooliris-ImageDownload";
     private static final int CONNECTION_TIMEOUT = 20000; // ms.
+    private static final long DECODE_TIMEOUT = 6000; // ms.
+    private static final int IDLE_CONNECTION_TIMEOUT = 30000; // ms.
+    private static final int MAX_CONNECTIONS_TOTAL = 8;
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
     public static final HttpParams HTTP_PARAMS;
     public static final SchemeRegistry SCHEME_REGISTRY;
+    public static final ThreadSafeClientConnManager HTTP_CONNECTION_MANAGER;
+    private static final DefaultHttpClient HTTP_CLIENT;
     static {
-        // Prepare HTTP parameters.
+        // Prepare HTTP parameters. Stale checking stays on since pooled
+        // connections may have been dropped by the server while idle.
         HttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setStaleCheckingEnabled(params, false);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
         HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
         HttpConnectionParams.setSoTimeout(params, CONNECTION_TIMEOUT);
         HttpClientParams.setRedirecting(params, true);
         HttpProtocolParams.setUserAgent(params, USER_AGENT);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS_TOTAL);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+        ConnManagerParams.setTimeout(params, CONNECTION_TIMEOUT);
         HTTP_PARAMS = params;
 
-        // Register HTTP protocol.
+        // Register HTTP protocols.
         SCHEME_REGISTRY = new SchemeRegistry();
         SCHEME_REGISTRY.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-    }
+        SCHEME_REGISTRY.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
 
-    private SingleClientConnManager mConnectionManager;
+        // Create the connection pool shared by all remote image loads.
+        HTTP_CONNECTION_MANAGER = new ThreadSafeClientConnManager(params, SCHEME_REGISTRY);
+        HTTP_CLIENT = new DefaultHttpClient(HTTP_CONNECTION_MANAGER, params);
+    }
 
     static {
         File uri_cache = new File(URI_CACHE);
         uri_cache.mkdirs();
     }
 
+    public static final UriCache sUriCache = new UriCache(URI_CACHE);
+    public static final BitmapLoadCoalescer sLoadCoalescer = new BitmapLoadCoalescer();
+
+    private static final class Download {
+        public String inOutEtag;
+        public String inOutLastModified;
+        public int outStatus;
+    }
+
     public UriTexture(String imageUri) {
         mUri = imageUri;
     }
@@ -80,7 +107,31 @@ public class UriTexture extends Texture {
         mCacheId = id;
     }
 
-    public static final Bitmap createFromUri(Context context, String uri, int maxResolutionX, int maxResolutionY, long cacheId,
+    public static final Bitmap createFromUri(final Context context, final String uri, final int maxResolutionX,
+            final int maxResolutionY, final long cacheId, final ClientConnectionManager connectionManager) throws IOException,
+            URISyntaxException, OutOfMemoryError {
+        // Concurrent requests for the same image and resolution share a single
+        // decode or download.
+        long key = (cacheId != 0 && uri.startsWith(ContentResolver.SCHEME_CONTENT)) ? cacheId : Utils.Crc64Long(uri);
+        key = (key * 31 + maxResolutionX) * 31 + maxResolutionY;
+        try {
+            return sLoadCoalescer.load(key, new BitmapLoadCoalescer.Loader() {
+                public Bitmap load() throws Exception {
+                    return decodeFromUri(context, uri, maxResolutionX, maxResolutionY, cacheId, connectionManager);
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (URISyntaxException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    private static Bitmap decodeFromUri(Context context, String uri, int maxResolutionX, int maxResolutionY, long cacheId,
             ClientConnectionManager connectionManager) throws IOException, URISyntaxException, OutOfMemoryError {
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inScaled = false;
@@ -94,11 +145,15 @@ public class UriTexture extends Texture {
         } else {
             crc64 = Utils.Crc64Long(uri);
         }
-        bitmap = createFromCache(crc64, maxResolutionX);
-        if (bitmap != null) {
-            return bitmap;
-        }
         final boolean local = uri.startsWith(ContentResolver.SCHEME_CONTENT) || uri.startsWith("file://");
+        final boolean revalidate = !local && sUriCache.needsRevalidation(crc64, maxResolutionX);
+        if (!revalidate) {
+            bitmap = createFromCache(crc64, maxResolutionX);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        final Download download = new Download();
         int sampleSize = 1;
         if (uri.startsWith(ContentResolver.SCHEME_CONTENT)) {
             // Load the bitmap from a local file.
@@ -122,51 +177,33 @@ public class UriTexture extends Texture {
             options.inDither = false;
             options.inJustDecodeBounds = false;
             options.inSampleSize = ratio;
-            Thread timeoutThread = new Thread("BitmapTimeoutThread") {
-                public void run() {
-                    try {
-                        Thread.sleep(6000);
-                        options.requestCancelDecode();
-                    } catch (InterruptedException e) {
-
-                    }
-                }
-            };
-            timeoutThread.start();
-            bufferedInput.close();
-            bufferedInput = new BufferedInputStream(context.getContentResolver().openInputStream(Uri.parse(uri)), 16384);
-            bitmap = BitmapFactory.decodeStream(bufferedInput, null, options);
             bufferedInput.close();
+            final ScheduledFuture<?> timeout = Timeouts.cancelDecodeAfter(options, DECODE_TIMEOUT);
+            try {
+                bufferedInput = new BufferedInputStream(context.getContentResolver().openInputStream(Uri.parse(uri)), 16384);
+                bitmap = BitmapFactory.decodeStream(bufferedInput, null, options);
+                bufferedInput.close();
+            } finally {
+                timeout.cancel(false);
+            }
         } else {
             // Load the bitmap from a remote URL.
             try {
-                InputStream contentInput = null;
-                if (connectionManager == null) {
+                if (uri.startsWith("http://") || uri.startsWith("https://")) {
+                    if (revalidate) {
+                        download.inOutEtag = sUriCache.getEtag(crc64, maxResolutionX);
+                        download.inOutLastModified = sUriCache.getLastModified(crc64, maxResolutionX);
+                    }
+                    bitmap = createFromHttp(uri, options, connectionManager, download);
+                    if (download.outStatus == HttpStatus.SC_NOT_MODIFIED) {
+                        sUriCache.markValidated(crc64, maxResolutionX);
+                        return createFromCache(crc64, maxResolutionX);
+                    }
+                } else {
                     final URL url = new URI(uri).toURL();
                     final URLConnection conn = url.openConnection();
                     conn.connect();
-                    contentInput = conn.getInputStream();
-                } else {
-                    // We create a cancelable http request from the client
-                    final DefaultHttpClient mHttpClient = new DefaultHttpClient(connectionManager, HTTP_PARAMS);
-                    HttpUriRequest request = new HttpGet(uri);
-                    // Execute the HTTP request.
-                    HttpResponse httpResponse = null;
-                    try {
-                        httpResponse = mHttpClient.execute(request);
-                    } catch (IOException e) {
-                        Log.w(TAG, "Request failed: " + request.getURI());
-                        throw e;
-                    }
-                    HttpEntity entity = httpResponse.getEntity();
-                    if (entity != null) {
-                        // Wrap the entity input stream in a GZIP decoder if
-                        // necessary.
-                        contentInput = entity.getContent();
-                    }
-                }
-                if (contentInput != null) {
-                    final BufferedInputStream bufferedInput = new BufferedInputStream(contentInput, 4096);
+                    final BufferedInputStream bufferedInput = new BufferedInputStream(conn.getInputStream(), 4096);
                     bitmap = BitmapFactory.decodeStream(bufferedInput, null, options);
                     bufferedInput.close();
                 }
@@ -174,9 +211,13 @@ public class UriTexture extends Texture {
                 Log.e(TAG, "Error loading image from uri " + uri);
             }
         }
+        if (bitmap == null && revalidate) {
+            // Serve the stale copy if the server could not be reached.
+            return createFromCache(crc64, maxResolutionX);
+        }
         if (sampleSize > 1 || !local) {
             try {
-                writeToCache(crc64, bitmap, maxResolutionX);
+                writeToCache(crc64, bitmap, maxResolutionX, download.inOutEtag, download.inOutLastModified);
             } catch (IOException e) {
                 return bitmap;
             }
@@ -184,16 +225,79 @@ public class UriTexture extends Texture {
         return bitmap;
     }
 
-    @Override
-    protected Bitmap load(RenderView view) {
+    private static Bitmap createFromHttp(String uri, BitmapFactory.Options options, ClientConnectionManager connectionManager,
+            Download download) throws IOException {
+        // Requests go through the shared pool unless the caller supplies its
+        // own manager, so that keep-alive connections are reused across
+        // textures.
+        final DefaultHttpClient httpClient = (connectionManager == null) ? HTTP_CLIENT : new DefaultHttpClient(
+                connectionManager, HTTP_PARAMS);
+        final HttpUriRequest request = new HttpGet(uri);
+        if (download.inOutEtag != null) {
+            request.addHeader("If-None-Match", download.inOutEtag);
+        }
+        if (download.inOutLastModified != null) {
+            request.addHeader("If-Modified-Since", download.inOutLastModified);
+        }
         Bitmap bitmap = null;
+        InputStream contentInput = null;
         try {
-            if (mUri.startsWith("http://")) {
-                if (!isCached(Utils.Crc64Long(mUri), MAX_RESOLUTION_A)) {
-                    mConnectionManager = new SingleClientConnManager(HTTP_PARAMS, SCHEME_REGISTRY);
+            // Execute the HTTP request.
+            HttpResponse httpResponse = null;
+            try {
+                httpResponse = httpClient.execute(request);
+            } catch (IOException e) {
+                Log.w(TAG, "Request failed: " + request.getURI());
+                throw e;
+            }
+            // Remember the validators for the next conditional request.
+            final int status = httpResponse.getStatusLine().getStatusCode();
+            download.outStatus = status;
+            if (status == HttpStatus.SC_OK) {
+                final Header etagHeader = httpResponse.getFirstHeader("ETag");
+                final Header lastModifiedHeader = httpResponse.getFirstHeader("Last-Modified");
+                download.inOutEtag = etagHeader != null ? etagHeader.getValue() : null;
+                download.inOutLastModified = lastModifiedHeader != null ? lastModifiedHeader.getValue() : null;
+            }
+            HttpEntity entity = httpResponse.getEntity();
+            if (entity != null) {
+                contentInput = entity.getContent();
+                if (status != HttpStatus.SC_OK) {
+                    // Drain the body so that the connection can be reused.
+                    entity.consumeContent();
+                    contentInput = null;
                 }
             }
-            bitmap = createFromUri(view.getContext(), mUri, MAX_RESOLUTION_A, MAX_RESOLUTION_B, mCacheId, mConnectionManager);
+            if (contentInput != null) {
+                final BufferedInputStream bufferedInput = new BufferedInputStream(contentInput, 4096);
+                bitmap = BitmapFactory.decodeStream(bufferedInput, null, options);
+                // Closing the stream releases the connection back to the pool.
+                bufferedInput.close();
+                contentInput = null;
+            }
+        } catch (IOException e) {
+            request.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            request.abort();
+            throw e;
+        } finally {
+            if (contentInput != null) {
+                request.abort();
+            }
+            if (connectionManager == null) {
+                HTTP_CONNECTION_MANAGER.closeExpiredConnections();
+                HTTP_CONNECTION_MANAGER.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }
+        return bitmap;
+    }
+
+    @Override
+    protected Bitmap load(RenderView view) {
+        Bitmap bitmap = null;
+        try {
+            bitmap = createFromUri(view.getContext(), mUri, MAX_RESOLUTION_A, MAX_RESOLUTION_B, mCacheId, null);
         } catch (Exception e2) {
             Log.e(TAG, "Unable to load image from URI " + mUri);
             e2.printStackTrace();
@@ -202,38 +306,29 @@ public class UriTexture extends Texture {
     }
 
     public static final String createFilePathFromCrc64(long crc64, int maxResolution) {
-        return URI_CACHE + crc64 + "_" + maxResolution + ".cache";
+        return sUriCache.getFilePath(crc64, maxResolution);
     }
 
     public static boolean isCached(long crc64, int maxResolution) {
-        String file = null;
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inScaled = false;
-        options.inPreferredConfig = Bitmap.Config.RGB_565;
-        options.inDither = false;
-        if (crc64 != 0) {
-            file = createFilePathFromCrc64(crc64, maxResolution);
-            try {
-                new FileInputStream(file);
-                return true;
-            } catch (FileNotFoundException e) {
-                return false;
-            }
-        }
-        return false;
+        // Answered from the in-memory index without touching the filesystem.
+        return crc64 != 0 && sUriCache.contains(crc64, maxResolution);
     }
 
     public static Bitmap createFromCache(long crc64, int maxResolution) {
+        if (!isCached(crc64, maxResolution)) {
+            return null;
+        }
         try {
-            String file = null;
-            Bitmap bitmap = null;
             final BitmapFactory.Options options = new BitmapFactory.Options();
             options.inScaled = false;
             options.inPreferredConfig = Bitmap.Config.RGB_565;
             options.inDither = false;
-            if (crc64 != 0) {
-                file = createFilePathFromCrc64(crc64, maxResolution);
-                bitmap = BitmapFactory.decodeFile(file, options);
+            final Bitmap bitmap = BitmapFactory.decodeFile(createFilePathFromCrc64(crc64, maxResolution), options);
+            if (bitmap != null) {
+                sUriCache.touch(crc64, maxResolution);
+            } else {
+                // The file is gone or unreadable, drop the stale entry.
+                sUriCache.delete(crc64, maxResolution);
             }
             return bitmap;
         } catch (Exception e) {
@@ -273,6 +368,11 @@ public class UriTexture extends Texture {
     }
 
     public static void writeToCache(long crc64, Bitmap bitmap, int maxResolution) throws IOException {
+        writeToCache(crc64, bitmap, maxResolution, null, null);
+    }
+
+    public static void writeToCache(long crc64, Bitmap bitmap, int maxResolution, String etag, String lastModified)
+            throws IOException {
         String file = createFilePathFromCrc64(crc64, maxResolution);
         if (bitmap != null && file != null && crc64 != 0) {
             try {
@@ -284,6 +384,7 @@ public class UriTexture extends Texture {
                 bos.flush();
                 bos.close();
                 fos.close();
+                sUriCache.put(crc64, maxResolution, fileC.length(), etag, lastModified);
             } catch (IOException e) {
                 throw e;
             } catch (Exception e) {
@@ -293,22 +394,8 @@ public class UriTexture extends Texture {
     }
 
     public static void invalidateCache(long crc64, int maxResolution) {
-        String file = createFilePathFromCrc64(crc64, maxResolution);
-        if (file != null && crc64 != 0) {
-            try {
-                File fileC = new File(file);
-                fileC.delete();
-            } catch (Exception e) {
-
-            }
-        }
-
-    }
-
-    @Override
-    public void finalize() {
-        if (mConnectionManager != null) {
-            mConnectionManager.shutdown();
+        if (crc64 != 0) {
+            sUriCache.delete(crc64, maxResolution);
         }
     }
 }
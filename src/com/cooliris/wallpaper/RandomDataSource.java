@@ -2,6 +2,7 @@ package com.cooliris.wallpaper;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Random;
 
 import com.cooliris.cache.CacheService;
 import com.cooliris.cache.ImageList;
@@ -12,16 +13,39 @@ import android.content.Context;
 import android.graphics.Bitmap;
 
 public class RandomDataSource implements Slideshow.DataSource {
+    private final Random mRandom = new Random();
+    // A shuffled order of the images of mList, shown in turn so that no image
+    // repeats before all others were shown. A retiring decode thread may still
+    // call in next to the current one.
+    private ImageList mList;
+    private int[] mOrder;
+    private int mNextIndex;
 
-    public Bitmap getBitmapForIndex(Context context, int currentSlideshowCounter) {
+    public synchronized Bitmap getBitmapForIndex(Context context, int currentSlideshowCounter) {
         ImageList list = CacheService.getImageList(context);
         // Once we have the id and the thumbid, we can return a bitmap
         // First we select a random numbers
-        if (list.ids == null)
+        if (list.ids == null || list.ids.length == 0)
             return null;
-        double random = Math.random();
-        random *= list.ids.length;
-        int index = (int) random;
+        if (list != mList) {
+            mList = list;
+            mOrder = new int[list.ids.length];
+            for (int i = 0; i < mOrder.length; ++i) {
+                mOrder[i] = i;
+            }
+            mNextIndex = mOrder.length;
+        }
+        final int[] order = mOrder;
+        if (mNextIndex >= order.length) {
+            for (int i = order.length - 1; i > 0; --i) {
+                final int j = mRandom.nextInt(i + 1);
+                final int index = order[i];
+                order[i] = order[j];
+                order[j] = index;
+            }
+            mNextIndex = 0;
+        }
+        int index = order[mNextIndex++];
         long cacheId = list.thumbids[index];
         final String uri = CacheService.BASE_CONTENT_STRING_IMAGES + list.ids[index];
         Bitmap retVal = null;
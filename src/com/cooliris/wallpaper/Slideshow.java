@@ -1,6 +1,8 @@
 package com.cooliris.wallpaper;
 
 //import android.app.Service;
+import java.util.ArrayList;
+
 import com.cooliris.media.Vector3f;
 
 import android.content.Context;
@@ -12,6 +14,7 @@ import android.graphics.PorterDuffColorFilter;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Handler;
+import android.os.Process;
 import android.os.SystemClock;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -25,6 +28,11 @@ public class Slideshow extends SurfaceView implements SurfaceHolder.Callback {
     }
 
     public static final int SLIDESHOW_DURATION = 2000;
+    // Number of bitmaps decoded ahead of the transitions that show them.
+    private static final int NUM_DECODED_AHEAD = 2;
+    // Bitmaps are kept large enough to cover the surface as the frame grows.
+    private static final float MAX_GROWTH = 1.5f;
+    private static final long RETRY_DELAY = 2000; // ms.
 
     public interface DataSource {
         /**
@@ -61,11 +69,19 @@ public class Slideshow extends SurfaceView implements SurfaceHolder.Callback {
     private long mPrevTime;
     private long mTimeElapsed;
 
+    // Guards the queue and the thread allowed to fill it.
+    private final ArrayList<Bitmap> mDecodedBitmaps = new ArrayList<Bitmap>(NUM_DECODED_AHEAD);
+    private DecodeThread mDecodeThread;
+    private volatile int mSurfaceWidth;
+    private volatile int mSurfaceHeight;
+
     public void setDataSource(DataSource source) {
         mSource = source;
     }
 
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
         mHandler.post(mDrawFrame);
         if (mBitmap != null) {
             mRect = getRectToFitBitmap(mBitmap.getWidth(), mBitmap.getHeight(), width, height);
@@ -82,11 +98,30 @@ public class Slideshow extends SurfaceView implements SurfaceHolder.Callback {
     public void surfaceCreated(SurfaceHolder holder) {
         // We may need to make calls to super once this is a subclass of
         // WallpaperService.
+        synchronized (mDecodedBitmaps) {
+            if (mDecodeThread == null) {
+                mDecodeThread = new DecodeThread();
+                mDecodeThread.start();
+            }
+        }
         mHandler.post(mDrawFrame);
     }
 
     public void surfaceDestroyed(SurfaceHolder holder) {
-
+        final ArrayList<Bitmap> decodedBitmaps = mDecodedBitmaps;
+        synchronized (decodedBitmaps) {
+            // A decode in progress cannot be interrupted; the thread drops its
+            // bitmap once it sees that it is no longer the decode thread.
+            if (mDecodeThread != null) {
+                mDecodeThread.interrupt();
+                mDecodeThread = null;
+            }
+            for (int i = 0, numBitmaps = decodedBitmaps.size(); i < numBitmaps; ++i) {
+                decodedBitmaps.get(i).recycle();
+            }
+            decodedBitmaps.clear();
+            decodedBitmaps.notifyAll();
+        }
     }
 
     public void drawFrame() {
@@ -104,6 +139,10 @@ public class Slideshow extends SurfaceView implements SurfaceHolder.Callback {
                 mTimeElapsed += delta;
                 mPrevTime = now;
                 performSetup(frame.width(), frame.height());
+                if (mQueuedBitmap == null && mTimeElapsed > SLIDESHOW_DURATION) {
+                    // Hold the current image until the next one is decoded.
+                    mTimeElapsed = SLIDESHOW_DURATION;
+                }
                 // We draw the source bitmap
                 if (mBitmap != null) {
                     if (mTimeElapsed > SLIDESHOW_DURATION) {
@@ -168,7 +207,7 @@ public class Slideshow extends SurfaceView implements SurfaceHolder.Callback {
 
     private void performSetup(int viewWidth, int viewHeight) {
         if (mBitmap == null) {
-            mBitmap = getRandomBitmap();
+            mBitmap = takeDecodedBitmap();
             if (mBitmap != null) {
                 mRect = getRectToFitBitmap(mBitmap.getWidth(), mBitmap.getHeight(), viewWidth, viewHeight);
                 mFrameRect = new RectF();
@@ -177,11 +216,8 @@ public class Slideshow extends SurfaceView implements SurfaceHolder.Callback {
                 sGrow.set((float) Math.random(), (float) Math.random(), 0);
             }
         }
-        if (mQueuedBitmap == null) {
-            mQueuedBitmap = getRandomBitmap();
-            if (mQueuedBitmap == null) {
-                mQueuedBitmap = mBitmap;
-            }
+        if (mQueuedBitmap == null && mBitmap != null) {
+            mQueuedBitmap = takeDecodedBitmap();
             if (mQueuedBitmap != null) {
                 mQueuedRect = getRectToFitBitmap(mQueuedBitmap.getWidth(), mQueuedBitmap.getHeight(), viewWidth, viewHeight);
                 mQueuedFrameRect = new RectF();
@@ -215,6 +251,95 @@ public class Slideshow extends SurfaceView implements SurfaceHolder.Callback {
         return null;
     }
 
+    /**
+     * Returns the next bitmap decoded ahead, or null if the decode thread has
+     * not finished one yet.
+     */
+    private Bitmap takeDecodedBitmap() {
+        final ArrayList<Bitmap> decodedBitmaps = mDecodedBitmaps;
+        synchronized (decodedBitmaps) {
+            if (decodedBitmaps.isEmpty()) {
+                return null;
+            }
+            decodedBitmaps.notifyAll();
+            return decodedBitmaps.remove(0);
+        }
+    }
+
+    /**
+     * Scales the bitmap down to the smallest size that covers the surface at
+     * the end of a transition, since the source decodes at a fixed resolution.
+     */
+    private Bitmap scaleToSurface(Bitmap bitmap) {
+        final int width = mSurfaceWidth;
+        final int height = mSurfaceHeight;
+        if (width == 0 || height == 0) {
+            return bitmap;
+        }
+        final int bitmapWidth = bitmap.getWidth();
+        final int bitmapHeight = bitmap.getHeight();
+        final float scale = MAX_GROWTH * Math.max((float) width / bitmapWidth, (float) height / bitmapHeight);
+        if (scale >= 1.0f) {
+            return bitmap;
+        }
+        final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmapWidth * scale), Math.round(bitmapHeight * scale),
+                true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * Keeps NUM_DECODED_AHEAD bitmaps decoded so that transitions never wait
+     * on the data source.
+     */
+    private final class DecodeThread extends Thread {
+        public DecodeThread() {
+            super("SlideshowDecode");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final ArrayList<Bitmap> decodedBitmaps = mDecodedBitmaps;
+            try {
+                while (true) {
+                    synchronized (decodedBitmaps) {
+                        while (mDecodeThread == this && decodedBitmaps.size() >= NUM_DECODED_AHEAD) {
+                            decodedBitmaps.wait();
+                        }
+                        if (mDecodeThread != this) {
+                            return;
+                        }
+                    }
+                    Bitmap bitmap = null;
+                    try {
+                        bitmap = getRandomBitmap();
+                        if (bitmap != null) {
+                            bitmap = scaleToSurface(bitmap);
+                        }
+                    } catch (OutOfMemoryError e) {
+                        bitmap = null;
+                    }
+                    if (bitmap == null) {
+                        Thread.sleep(RETRY_DELAY);
+                        continue;
+                    }
+                    synchronized (decodedBitmaps) {
+                        if (mDecodeThread != this || decodedBitmaps.size() >= NUM_DECODED_AHEAD) {
+                            bitmap.recycle();
+                        } else {
+                            decodedBitmaps.add(bitmap);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The surface went away.
+            }
+        }
+    }
+
     public void onVisibilityChanged(boolean visible) {
         mVisible = visible;
         if (!visible) {